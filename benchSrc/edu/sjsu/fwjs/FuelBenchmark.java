@@ -0,0 +1,52 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what Fuel costs on loop- and call-heavy scripts.
+ *
+ * With metering "off" no thread ever runs with Fuel, which is the case
+ * to compare against the same benchmark before Fuel existed; "on" runs
+ * every evaluation with Fuel that does not run out.  Every combination
+ * runs in a fork of its own, so "on" cannot slow down "off".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FuelBenchmark {
+    @Param({"loop:10000", "factorial:200", "list:1000"})
+    public String workload;
+
+    @Param({"off", "on"})
+    public String metering;
+
+    private Program program;
+
+    @Setup
+    public void setup() throws IOException {
+        program = new ScriptEngine().compile(Workloads.source(workload));
+    }
+
+    @Benchmark
+    public Value tree() {
+        if (metering.equals("off"))
+            return program.run();
+        return Fuel.unlimited().run(() -> program.run());
+    }
+}
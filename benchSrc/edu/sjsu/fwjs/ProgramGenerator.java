@@ -0,0 +1,109 @@
+package edu.sjsu.fwjs;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Writes synthetic FWJS programs whose size can be turned up along one
+ * dimension at a time, to see how each part of the interpreter scales.
+ * Every program has one part per dimension; a dimension left at 1 makes
+ * its part trivial.  The program prints a checksum of every part.
+ *
+ * Calls inside arithmetic are parenthesized, since the grammar binds a
+ * function application looser than + and *.
+ */
+final class ProgramGenerator {
+    enum Dimension {
+        /** Top-level statements, i.e. the length of the program's own Seq chain. */
+        STATEMENTS,
+        /** Statements in one function body. */
+        SEQ_LENGTH,
+        /** Functions nested in each other, the innermost reading the outermost parameter. */
+        CLOSURE_DEPTH,
+        /** Depth of a recursion that is not a tail call. */
+        RECURSION_DEPTH,
+        /** Iterations of a while loop. */
+        LOOP_ITERATIONS,
+        /** Variables declared in the global scope and in one function scope. */
+        VARS_PER_SCOPE
+    }
+
+    private final Map<Dimension,Integer> sizes = new EnumMap<Dimension,Integer>(Dimension.class);
+
+    ProgramGenerator() {
+        for (Dimension d : Dimension.values())
+            sizes.put(d, 1);
+    }
+
+    void set(Dimension d, int n) {
+        if (n < 1) throw new IllegalArgumentException(d + " must be at least 1");
+        sizes.put(d, n);
+    }
+
+    int get(Dimension d) {
+        return sizes.get(d);
+    }
+
+    String generate() {
+        StringBuilder sb = new StringBuilder();
+        statements(sb, get(Dimension.STATEMENTS));
+        seq(sb, get(Dimension.SEQ_LENGTH));
+        closures(sb, get(Dimension.CLOSURE_DEPTH));
+        recursion(sb, get(Dimension.RECURSION_DEPTH));
+        loop(sb, get(Dimension.LOOP_ITERATIONS));
+        vars(sb, get(Dimension.VARS_PER_SCOPE));
+        return sb.toString();
+    }
+
+    private static void statements(StringBuilder sb, int n) {
+        sb.append("var s = 0;\n");
+        for (int i = 1; i < n; i++)
+            sb.append("s = s + ").append(i % 7).append(";\n");
+        sb.append("print(s);\n");
+    }
+
+    private static void seq(StringBuilder sb, int n) {
+        sb.append("var seq = function(t) {\n");
+        for (int i = 0; i < n; i++)
+            sb.append("  t = t + ").append(i % 7).append(";\n");
+        sb.append("  t;\n};\nprint(seq(0));\n");
+    }
+
+    private static void closures(StringBuilder sb, int n) {
+        sb.append("var nest = ");
+        for (int i = 0; i < n; i++)
+            sb.append("function(x").append(i).append(") { ");
+        sb.append("x0 + x").append(n - 1).append(";");
+        for (int i = 0; i < n; i++)
+            sb.append(" };");
+        sb.append("\nvar g = nest;\n");
+        for (int i = 0; i < n; i++)
+            sb.append("g = g(").append(i + 1).append(");\n");
+        sb.append("print(g);\n");
+    }
+
+    private static void recursion(StringBuilder sb, int n) {
+        sb.append("var rec = function(n) {\n"
+                + "  if (n < 1) 0;\n"
+                + "  else 1 + (rec(n - 1));\n"
+                + "};\n"
+                + "print(rec(").append(n).append("));\n");
+    }
+
+    private static void loop(StringBuilder sb, int n) {
+        sb.append("var i = 0;\nvar acc = 0;\n"
+                + "while (i < ").append(n).append(") {\n"
+                + "  acc = acc + i;\n"
+                + "  i = i + 1;\n"
+                + "}\nprint(acc);\n");
+    }
+
+    private static void vars(StringBuilder sb, int n) {
+        for (int i = 0; i < n; i++)
+            sb.append("var v").append(i).append(" = ").append(i).append(";\n");
+        sb.append("var locals = function() {\n");
+        for (int i = 0; i < n; i++)
+            sb.append("  var w").append(i).append(" = v").append(i).append(";\n");
+        sb.append("  w0 + w").append(n - 1).append(";\n};\nprint(locals());\n");
+    }
+}
@@ -0,0 +1,222 @@
+package edu.sjsu.fwjs;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import edu.sjsu.fwjs.ProgramGenerator.Dimension;
+
+/**
+ * Grows generated programs along one dimension at a time and reports how
+ * the time and memory of each phase grow with them, to find the places
+ * where the interpreter scales worse than linearly.
+ *
+ * Every program goes through the same phases as in the Interpreter:
+ * parse (lexing, parsing and building the tree), resolve, and evaluate,
+ * with the printed output thrown away.  The time of a phase is the best
+ * of a few runs; the memory is what the whole run allocated, and what
+ * the built tree holds on to: the growth of the heap in use across
+ * parsing and resolving, each side measured over several full GCs, and
+ * the median of the runs.  A step whose time grows faster than the
+ * size to the power 1.5 is flagged.  A program that overflows the stack
+ * ends its dimension.  Each dimension ends with charts of the time, the
+ * allocation and the tree size.
+ *
+ * Usage: ScalingDriver [-steps N] [-csv FILE] [DIMENSION...]
+ */
+public class ScalingDriver {
+    // Smallest size of each dimension; every step doubles it.
+    private static final int[] START = {1000, 1000, 16, 100, 10000, 100};
+    private static final int REPEAT = 3;
+    private static final double SUPERLINEAR = 1.5;
+    // Full GCs per measurement of the heap in use.
+    private static final int GCS = 4;
+
+    private final OutputSink discard = new OutputSink(OutputStream.nullOutputStream());
+
+    private static class Row {
+        Dimension dim;
+        int size;
+        long parseNanos;
+        long resolveNanos;
+        long evalNanos;
+        long allocated;
+        long treeBytes;
+        String failure;
+
+        long totalNanos() {
+            return parseNanos + resolveNanos + evalNanos;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int steps = 7;
+        String csv = null;
+        List<Dimension> dims = new ArrayList<Dimension>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-steps")) steps = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-csv")) csv = args[++i];
+            else dims.add(Dimension.valueOf(args[i].toUpperCase()));
+        }
+        if (dims.isEmpty())
+            for (Dimension d : Dimension.values())
+                dims.add(d);
+
+        ScalingDriver driver = new ScalingDriver();
+        List<Row> rows = new ArrayList<Row>();
+        for (Dimension d : dims) {
+            System.out.printf("%n%s%n%10s %10s %10s %10s %10s %10s %10s%n", d,
+                    "size", "parse ms", "resolve ms", "eval ms", "total ms", "alloc MB", "tree KB");
+            // Once untimed, so the first size does not pay for JIT warm-up.
+            driver.measure(d, START[d.ordinal()]);
+            List<Row> series = new ArrayList<Row>();
+            for (int step = 0, n = START[d.ordinal()]; step < steps; step++, n *= 2) {
+                Row row = driver.measure(d, n);
+                series.add(row);
+                print(row, series.size() > 1 ? series.get(series.size() - 2) : null);
+                if (row.failure != null) break;
+            }
+            plot("total time", series, Row::totalNanos);
+            plot("allocated", series, row -> row.allocated);
+            plot("tree", series, row -> row.treeBytes);
+            rows.addAll(series);
+        }
+        if (csv != null)
+            writeCsv(csv, rows);
+    }
+
+    Row measure(Dimension d, int n) {
+        ProgramGenerator gen = new ProgramGenerator();
+        gen.set(d, n);
+        String source = gen.generate();
+        Row row = new Row();
+        row.dim = d;
+        row.size = n;
+        row.parseNanos = row.resolveNanos = row.evalNanos = Long.MAX_VALUE;
+        long[] treeBytes = new long[REPEAT];
+        long before = allocatedBytes();
+        try {
+            for (int i = 0; i < REPEAT; i++) {
+                treeBytes[i] = runOnce(source, row);
+                if (i == 0)
+                    row.allocated = allocatedBytes() - before;
+            }
+            Arrays.sort(treeBytes);
+            row.treeBytes = treeBytes[REPEAT / 2];
+        } catch (StackOverflowError e) {
+            row.failure = "stack overflow";
+        } catch (RuntimeException e) {
+            row.failure = e.toString();
+        }
+        return row;
+    }
+
+    /**
+     * Runs the program once, keeping the best time of each phase in row,
+     * and returns how much the heap in use grew with the built tree.  The
+     * tree is garbage once this returns, so the next run does not count
+     * it in the heap it starts from.
+     */
+    private long runOnce(String source, Row row) {
+        long retainedBefore = usedHeap();
+        long t0 = System.nanoTime();
+        Expression prog = new ScriptParser().parse(source);
+        long t1 = System.nanoTime();
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        long t2 = System.nanoTime();
+        long treeBytes = Math.max(0, usedHeap() - retainedBefore);
+        Environment globals = resolver.newGlobalEnvironment();
+        globals.setOutput(discard);
+        long t3 = System.nanoTime();
+        prog.evaluate(globals);
+        long t4 = System.nanoTime();
+        row.parseNanos = Math.min(row.parseNanos, t1 - t0);
+        row.resolveNanos = Math.min(row.resolveNanos, t2 - t1);
+        row.evalNanos = Math.min(row.evalNanos, t4 - t3);
+        return treeBytes;
+    }
+
+    private static void print(Row row, Row previous) {
+        if (row.failure != null) {
+            System.out.printf("%10d %s%n", row.size, row.failure);
+            return;
+        }
+        String flag = "";
+        if (previous != null && previous.failure == null && previous.totalNanos() > 0) {
+            double exponent = Math.log((double) row.totalNanos() / previous.totalNanos())
+                    / Math.log((double) row.size / previous.size);
+            if (exponent > SUPERLINEAR && row.totalNanos() > 5_000_000)
+                flag = String.format("  <-- grows as n^%.1f", exponent);
+        }
+        System.out.printf("%10d %10.2f %10.2f %10.2f %10.2f %10.1f %10d%s%n", row.size,
+                row.parseNanos / 1e6, row.resolveNanos / 1e6, row.evalNanos / 1e6,
+                row.totalNanos() / 1e6, row.allocated / 1e6, row.treeBytes / 1024, flag);
+    }
+
+    /**
+     * One measure against size, as bars scaled to the largest one.
+     */
+    private static void plot(String title, List<Row> series, ToLongFunction<Row> measure) {
+        long max = 1;
+        for (Row row : series)
+            if (row.failure == null)
+                max = Math.max(max, measure.applyAsLong(row));
+        System.out.printf("%n%10s%n", title);
+        for (Row row : series) {
+            if (row.failure != null) continue;
+            int width = (int) (60 * measure.applyAsLong(row) / max);
+            StringBuilder bar = new StringBuilder();
+            for (int i = 0; i < width; i++)
+                bar.append('#');
+            System.out.printf("%10d |%s%n", row.size, bar);
+        }
+    }
+
+    private static void writeCsv(String file, List<Row> rows) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("dimension,size,parse_ms,resolve_ms,eval_ms,total_ms,allocated_bytes,tree_bytes,failure");
+            for (Row row : rows) {
+                if (row.failure != null) {
+                    out.printf("%s,%d,,,,,,,%s%n", row.dim, row.size, row.failure);
+                } else {
+                    out.printf("%s,%d,%.3f,%.3f,%.3f,%.3f,%d,%d,%n", row.dim, row.size,
+                            row.parseNanos / 1e6, row.resolveNanos / 1e6, row.evalNanos / 1e6,
+                            row.totalNanos() / 1e6, row.allocated, row.treeBytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or 0 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        return 0;
+    }
+
+    /**
+     * The heap in use, the least seen over a few full GCs.  One GC may
+     * leave dead objects behind: the serial collector, for one, only
+     * compacts the whole heap every fourth full GC and counts what it
+     * skipped as in use.
+     */
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < GCS; i++) {
+            System.gc();
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
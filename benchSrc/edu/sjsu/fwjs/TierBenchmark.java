@@ -0,0 +1,60 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what the HotFunctionCompiler gains over the tree walker, on
+ * call-heavy scripts and on loops inside functions.
+ *
+ * With tier "interpreted" every function stays in the tree walker; with
+ * "compiled" functions are compiled after the default number of calls,
+ * as with -jit.  Every combination runs in a fork of its own, so the
+ * compiled code of one cannot change the profile of the other.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TierBenchmark {
+    @Param({"fib:20", "factorial:200", "sums:1000", "list:1000"})
+    public String workload;
+
+    @Param({"interpreted", "compiled"})
+    public String tier;
+
+    private Expression tree;
+    private Resolver resolver;
+    private final OutputSink discard = new OutputSink(OutputStream.nullOutputStream());
+
+    @Setup
+    public void setup() throws IOException {
+        HotFunctionCompiler.setThreshold(tier.equals("compiled")
+                ? HotFunctionCompiler.DEFAULT_THRESHOLD : 0);
+        tree = new ScriptParser().parse(Workloads.source(workload));
+        resolver = new Resolver();
+        resolver.resolve(tree);
+    }
+
+    @Benchmark
+    public Value evaluate() {
+        Environment globals = resolver.newGlobalEnvironment();
+        globals.setOutput(discard);
+        return tree.evaluate(globals);
+    }
+}
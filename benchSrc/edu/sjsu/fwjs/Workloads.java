@@ -0,0 +1,125 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Sources for the benchmarks.
+ * A workload is either the name of a script in fwjsScripts/ (or the
+ * directory given by -Dfwjs.scripts), or a generated program written as
+ * kind:N, where kind is one of
+ *   factorial  - recursive factorial of N
+ *   list       - builds a list of N pairs out of closures and sums it
+ *   closures   - N nested functions, each capturing the parameters of
+ *                all the ones around it, applied one argument at a time
+ *   loop       - a while loop of N iterations
+ *   fib        - doubly recursive Fibonacci number N
+ *   sums       - a function with a loop of 100 iterations, called N times
+ */
+final class Workloads {
+    private Workloads() {}
+
+    static String source(String workload) throws IOException {
+        int colon = workload.indexOf(':');
+        if (colon < 0) {
+            String dir = System.getProperty("fwjs.scripts", "fwjsScripts");
+            return new String(Files.readAllBytes(Paths.get(dir, workload)), StandardCharsets.UTF_8);
+        }
+        int n = Integer.parseInt(workload.substring(colon + 1));
+        switch (workload.substring(0, colon)) {
+        case "factorial":	return factorial(n);
+        case "list":		return list(n);
+        case "closures":	return closures(n);
+        case "loop":		return loop(n);
+        case "fib":		return fib(n);
+        case "sums":		return sums(n);
+        default:
+            throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+    }
+
+    static String factorial(int n) {
+        return "var fact = function(n) {\n"
+                + "  if (n < 1) 1;\n"
+                + "  else n * (fact(n - 1));\n"
+                + "};\n"
+                + "fact(" + n + ");\n";
+    }
+
+    static String list(int n) {
+        // Calls are parenthesized inside arithmetic: the grammar binds
+        // a function application looser than + and *.
+        return "var pair = function(x,y) { function(f) { f(x,y); }; };\n"
+                + "var head = function(p) { p(function(x,y) { x; }); };\n"
+                + "var tail = function(p) { p(function(x,y) { y; }); };\n"
+                + "var lst = null;\n"
+                + "var i = 0;\n"
+                + "while (i < " + n + ") {\n"
+                + "  i = i + 1;\n"
+                + "  lst = pair(i, lst);\n"
+                + "}\n"
+                + "var sum = 0;\n"
+                + "while (i > 0) {\n"
+                + "  sum = sum + (head(lst));\n"
+                + "  lst = tail(lst);\n"
+                + "  i = i - 1;\n"
+                + "}\n"
+                + "sum;\n";
+    }
+
+    static String loop(int n) {
+        return "var i = 0;\n"
+                + "var sum = 0;\n"
+                + "while (i < " + n + ") {\n"
+                + "  sum = sum + i;\n"
+                + "  i = i + 1;\n"
+                + "}\n"
+                + "sum;\n";
+    }
+
+    static String fib(int n) {
+        return "var fib = function(n) {\n"
+                + "  if (n < 2) n;\n"
+                + "  else (fib(n - 1)) + (fib(n - 2));\n"
+                + "};\n"
+                + "fib(" + n + ");\n";
+    }
+
+    static String sums(int n) {
+        return "var sum = function(n) {\n"
+                + "  var i = 0;\n"
+                + "  var s = 0;\n"
+                + "  while (i < n) {\n"
+                + "    s = s + i;\n"
+                + "    i = i + 1;\n"
+                + "  }\n"
+                + "  s;\n"
+                + "};\n"
+                + "var k = 0;\n"
+                + "var total = 0;\n"
+                + "while (k < " + n + ") {\n"
+                + "  total = total + (sum(100));\n"
+                + "  k = k + 1;\n"
+                + "}\n"
+                + "total;\n";
+    }
+
+    static String closures(int n) {
+        StringBuilder sb = new StringBuilder("var f = ");
+        for (int i = 0; i < n; i++)
+            sb.append("function(x").append(i).append(") { ");
+        sb.append("x0");
+        for (int i = 1; i < n; i++)
+            sb.append(" + x").append(i);
+        sb.append(";");
+        for (int i = 0; i < n; i++)
+            sb.append(" };");
+        sb.append("\nvar g = f;\n");
+        for (int i = 0; i < n; i++)
+            sb.append("g = g(").append(i).append(");\n");
+        sb.append("g;\n");
+        return sb.toString();
+    }
+}
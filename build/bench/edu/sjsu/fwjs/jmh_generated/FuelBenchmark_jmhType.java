@@ -0,0 +1,4 @@
+package edu.sjsu.fwjs.jmh_generated;
+public class FuelBenchmark_jmhType extends FuelBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package edu.sjsu.fwjs.jmh_generated;
+public class PhaseBenchmark_jmhType extends PhaseBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package edu.sjsu.fwjs.jmh_generated;
+public class TierBenchmark_jmhType extends TierBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,391 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The implementation behind a BinOpExpr.
+ * Nodes rewrite themselves in the style of Truffle's self-specializing ASTs:
+ * a BinOpExpr starts out uninitialized, specializes to an int-only node for
+ * its operator the first time it runs, and falls back to the generic node
+ * for good if a later operand breaks that guard.
+ * Each specialized node has its own straight-line code with no switch on
+ * the operator and no casts, which keeps the hot path small enough to inline.
+ *
+ * NOTE: Expressions have no parent pointers, so the rewrite replaces the
+ * node held by the BinOpExpr rather than the BinOpExpr itself.
+ */
+abstract class BinOpNode {
+    protected final BinOpExpr owner;
+    protected final Expression left;
+    protected final Expression right;
+
+    BinOpNode(BinOpExpr owner) {
+        this.owner = owner;
+        this.left = owner.getLeft();
+        this.right = owner.getRight();
+    }
+
+    abstract Value execute(Environment env);
+
+    int executeInt(Environment env) {
+        Value v = execute(env);
+        if (v instanceof IntVal) return ((IntVal) v).toInt();
+        throw new UnexpectedResultException(v);
+    }
+
+    boolean executeBoolean(Environment env) {
+        Value v = execute(env);
+        if (v instanceof BoolVal) return ((BoolVal) v).toBoolean();
+        throw new UnexpectedResultException(v);
+    }
+
+    /**
+     * Rewrites the owner to the generic node and finishes this evaluation there.
+     */
+    protected Value deoptimize(Value val1, Value val2) {
+        GenericBinOpNode generic = new GenericBinOpNode(owner);
+        owner.replace(generic);
+        return generic.apply(val1, val2);
+    }
+
+    /**
+     * The left operand broke the int guard; the right one has not run yet.
+     */
+    protected Value leftFailed(UnexpectedResultException ex, Environment env) {
+        return deoptimize(ex.getResult(), right.evaluate(env));
+    }
+
+    /**
+     * The right operand broke the int guard.
+     */
+    protected Value rightFailed(int val1, UnexpectedResultException ex) {
+        return deoptimize(new IntVal(val1), ex.getResult());
+    }
+
+    protected static int toInt(Value v) {
+        if (v instanceof IntVal) return ((IntVal) v).toInt();
+        throw new UnexpectedResultException(v);
+    }
+
+    protected static boolean toBoolean(Value v) {
+        if (v instanceof BoolVal) return ((BoolVal) v).toBoolean();
+        throw new UnexpectedResultException(v);
+    }
+}
+
+/**
+ * A BinOpExpr that has not run yet.
+ * Picks a specialization from the first operand values it sees.
+ */
+class UninitializedBinOpNode extends BinOpNode {
+    UninitializedBinOpNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        Value val1 = left.evaluate(env);
+        Value val2 = right.evaluate(env);
+        BinOpNode node;
+        if (val1 instanceof IntVal && val2 instanceof IntVal)
+            node = specializeInt();
+        else
+            node = new GenericBinOpNode(owner);
+        owner.replace(node);
+        return GenericBinOpNode.apply(owner.getOp(), val1, val2);
+    }
+
+    private BinOpNode specializeInt() {
+        switch (owner.getOp()) {
+        case ADD:		return new IntAddNode(owner);
+        case SUBTRACT:	return new IntSubNode(owner);
+        case MULTIPLY:	return new IntMulNode(owner);
+        case DIVIDE:	return new IntDivNode(owner);
+        case MOD:		return new IntModNode(owner);
+        case GT:		return new IntGreaterThanNode(owner);
+        case GE:		return new IntGreaterEqualNode(owner);
+        case LT:		return new IntLessThanNode(owner);
+        case LE:		return new IntLessEqualNode(owner);
+        case EQ:		return new IntEqualNode(owner);
+        default:		return new GenericBinOpNode(owner);
+        }
+    }
+}
+
+/**
+ * The fallback for operands that are not both ints.
+ * Arithmetic and ordering still require numbers; == compares any two values.
+ */
+class GenericBinOpNode extends BinOpNode {
+    GenericBinOpNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        Value val1 = left.evaluate(env);
+        return apply(val1, right.evaluate(env));
+    }
+
+    Value apply(Value val1, Value val2) {
+        return apply(owner.getOp(), val1, val2);
+    }
+
+    static Value apply(Op op, Value val1, Value val2) {
+        if (op == Op.EQ) {
+            if (val1 instanceof IntVal && val2 instanceof IntVal)
+                return BoolVal.valueOf(((IntVal) val1).toInt() == ((IntVal) val2).toInt());
+            return BoolVal.valueOf(val1.equals(val2));
+        }
+        int i1 = ((IntVal) val1).toInt();
+        int i2 = ((IntVal) val2).toInt();
+        switch (op) {
+        case ADD:		return new IntVal(i1 + i2);
+        case SUBTRACT:	return new IntVal(i1 - i2);
+        case MULTIPLY:	return new IntVal(i1 * i2);
+        case DIVIDE:	return new IntVal(i1 / i2);
+        case MOD:		return new IntVal(i1 % i2);
+        case GT:		return BoolVal.valueOf(i1 > i2);
+        case GE:		return BoolVal.valueOf(i1 >= i2);
+        case LT:		return BoolVal.valueOf(i1 < i2);
+        case LE:		return BoolVal.valueOf(i1 <= i2);
+        default:		return new NullVal(); //not supported
+        }
+    }
+}
+
+class IntAddNode extends BinOpNode {
+    IntAddNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return new IntVal(executeInt(env));
+    }
+
+    int executeInt(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(leftFailed(ex, env));
+        }
+        try {
+            return val1 + right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntSubNode extends BinOpNode {
+    IntSubNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return new IntVal(executeInt(env));
+    }
+
+    int executeInt(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(leftFailed(ex, env));
+        }
+        try {
+            return val1 - right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntMulNode extends BinOpNode {
+    IntMulNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return new IntVal(executeInt(env));
+    }
+
+    int executeInt(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(leftFailed(ex, env));
+        }
+        try {
+            return val1 * right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntDivNode extends BinOpNode {
+    IntDivNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return new IntVal(executeInt(env));
+    }
+
+    int executeInt(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(leftFailed(ex, env));
+        }
+        try {
+            return val1 / right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntModNode extends BinOpNode {
+    IntModNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return new IntVal(executeInt(env));
+    }
+
+    int executeInt(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(leftFailed(ex, env));
+        }
+        try {
+            return val1 % right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toInt(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntGreaterThanNode extends BinOpNode {
+    IntGreaterThanNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return BoolVal.valueOf(executeBoolean(env));
+    }
+
+    boolean executeBoolean(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(leftFailed(ex, env));
+        }
+        try {
+            return val1 > right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntGreaterEqualNode extends BinOpNode {
+    IntGreaterEqualNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return BoolVal.valueOf(executeBoolean(env));
+    }
+
+    boolean executeBoolean(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(leftFailed(ex, env));
+        }
+        try {
+            return val1 >= right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntLessThanNode extends BinOpNode {
+    IntLessThanNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return BoolVal.valueOf(executeBoolean(env));
+    }
+
+    boolean executeBoolean(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(leftFailed(ex, env));
+        }
+        try {
+            return val1 < right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntLessEqualNode extends BinOpNode {
+    IntLessEqualNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return BoolVal.valueOf(executeBoolean(env));
+    }
+
+    boolean executeBoolean(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(leftFailed(ex, env));
+        }
+        try {
+            return val1 <= right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(rightFailed(val1, ex));
+        }
+    }
+}
+
+class IntEqualNode extends BinOpNode {
+    IntEqualNode(BinOpExpr owner) {
+        super(owner);
+    }
+
+    Value execute(Environment env) {
+        return BoolVal.valueOf(executeBoolean(env));
+    }
+
+    boolean executeBoolean(Environment env) {
+        int val1;
+        try {
+            val1 = left.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(leftFailed(ex, env));
+        }
+        try {
+            return val1 == right.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return toBoolean(rightFailed(val1, ex));
+        }
+    }
+}
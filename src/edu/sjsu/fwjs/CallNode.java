@@ -0,0 +1,120 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+
+/**
+ * The inline cache behind a FunctionAppExpr, which evaluates the
+ * arguments of a call and writes them into the callee's new frame.
+ *
+ * Like BinOpNode, the nodes rewrite themselves while running.  A call
+ * site starts out uninitialized.  Every new function it calls adds a
+ * cached node to the front of a chain, which remembers the function's
+ * template (see ClosureVal.getTemplate) and with it the slots of its
+ * parameters.  While a callee has one of the cached templates, its
+ * arguments are written straight into those slots.  A site that has
+ * called more than MAX_POLYMORPHIC different functions is megamorphic:
+ * the chain is replaced by the generic node for good.
+ *
+ * Functions that were never resolved have no template, and are always
+ * bound the generic way.
+ *
+ * With -Dfwjs.metrics=true each site also counts its hits (calls that
+ * matched a cached template) and misses.
+ */
+abstract class CallNode {
+    static final int MAX_POLYMORPHIC = 4;
+    protected final FunctionAppExpr owner;
+
+    CallNode(FunctionAppExpr owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Evaluates the arguments in env, left to right, and binds them in the callee's frame.
+     */
+    abstract void bind(ClosureVal closure, Environment frame, Expression[] args, Environment env);
+
+    /**
+     * Binds arguments without a cached frame layout.
+     */
+    static void bindGeneric(ClosureVal closure, Environment frame, Expression[] args, Environment env) {
+        for (int i = 0; i < args.length; i++)
+            closure.bindParam(frame, i, args[i].evaluate(env));
+    }
+
+    /**
+     * Number of cached templates from here to the end of the chain.
+     */
+    int depth() {
+        return 0;
+    }
+}
+
+/**
+ * A call site that has not been specialized yet, or the end of a chain
+ * of cached nodes.  Adds the callee to the chain.
+ */
+class UninitializedCallNode extends CallNode {
+    UninitializedCallNode(FunctionAppExpr owner) {
+        super(owner);
+    }
+
+    void bind(ClosureVal closure, Environment frame, Expression[] args, Environment env) {
+        if (Metrics.ENABLED) owner.countMiss();
+        // Too many arguments is an error, which the generic binding reports.
+        if (closure.getTemplate() != null && args.length <= closure.getArity()) {
+            CallNode head = owner.getNode();
+            if (head.depth() < MAX_POLYMORPHIC)
+                owner.replace(new CachedCallNode(owner, closure, head));
+            else
+                owner.replace(new MegamorphicCallNode(owner));
+        }
+        bindGeneric(closure, frame, args, env);
+    }
+}
+
+/**
+ * One function this call site has seen.
+ */
+class CachedCallNode extends CallNode {
+    private final Object template;
+    private final List<String> params;
+    private final int[] paramSlots;
+    private final CallNode next;
+
+    CachedCallNode(FunctionAppExpr owner, ClosureVal closure, CallNode next) {
+        super(owner);
+        this.template = closure.getTemplate();
+        this.params = closure.getParams();
+        this.paramSlots = closure.getParamSlots();
+        this.next = next;
+    }
+
+    void bind(ClosureVal closure, Environment frame, Expression[] args, Environment env) {
+        if (closure.getTemplate() != template) {
+            next.bind(closure, frame, args, env);
+            return;
+        }
+        if (Metrics.ENABLED) owner.countHit();
+        for (int i = 0; i < args.length; i++)
+            frame.bindParam(paramSlots[i], params.get(i), args[i].evaluate(env));
+    }
+
+    int depth() {
+        return 1 + next.depth();
+    }
+}
+
+/**
+ * A call site that has seen too many functions to cache them all.
+ */
+class MegamorphicCallNode extends CallNode {
+    MegamorphicCallNode(FunctionAppExpr owner) {
+        super(owner);
+    }
+
+    void bind(ClosureVal closure, Environment frame, Expression[] args, Environment env) {
+        if (Metrics.ENABLED) owner.countMiss();
+        bindGeneric(closure, frame, args, env);
+    }
+}
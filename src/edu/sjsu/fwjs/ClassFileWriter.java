@@ -0,0 +1,270 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file writer for the HotFunctionCompiler:
+ * a constant pool, methods and their Code attribute.
+ *
+ * Classes are written as version 49 (Java 5) so the JVM verifies them by
+ * type inference, and no StackMapTable frames have to be computed.
+ */
+final class ClassFileWriter {
+    private static final int VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private DataOutputStream poolOut = new DataOutputStream(pool);
+    private Map<String,Integer> poolIndex = new HashMap<String,Integer>();
+    private int poolCount = 1;
+    private List<byte[]> methods = new ArrayList<byte[]>();
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++)
+            interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    int utf8(String s) {
+        Integer i = poolIndex.get("U" + s);
+        if (i != null) return i;
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry("U" + s);
+    }
+
+    int classRef(String internalName) {
+        Integer i = poolIndex.get("C" + internalName);
+        if (i != null) return i;
+        int name = utf8(internalName);
+        write(7, name);
+        return addEntry("C" + internalName);
+    }
+
+    int integer(int value) {
+        Integer i = poolIndex.get("I" + value);
+        if (i != null) return i;
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry("I" + value);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer i = poolIndex.get(key);
+        if (i != null) return i;
+        int cls = classRef(owner);
+        int nat = nameAndType(name, descriptor);
+        write(10, cls, nat);
+        return addEntry(key);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + descriptor;
+        Integer i = poolIndex.get(key);
+        if (i != null) return i;
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        write(12, n, d);
+        return addEntry(key);
+    }
+
+    private void write(int tag, int... shorts) {
+        try {
+            poolOut.writeByte(tag);
+            for (int s : shorts)
+                poolOut.writeShort(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int addEntry(String key) {
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    /**
+     * Adds a public method whose body is the finished code.
+     */
+    void addMethod(String name, String descriptor, MethodCode code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces)
+                out.writeShort(i);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A jump target inside a method body.
+     */
+    static final class Label {
+        private int position = -1;
+        private int stack = -1;
+        private List<int[]> fixups = new ArrayList<int[]>();
+    }
+
+    /**
+     * The bytecode of one method, with max stack tracked as it is emitted.
+     */
+    static final class MethodCode {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private int stack;
+        private int maxStack;
+        private int maxLocals;
+
+        MethodCode(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * Reserves one more local variable slot.
+         */
+        int newLocal() {
+            return maxLocals++;
+        }
+
+        /**
+         * Emits an instruction with the given effect on the operand stack.
+         */
+        void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        void op1(int opcode, int operand, int stackDelta) {
+            u1(opcode);
+            u1(operand);
+            adjust(stackDelta);
+        }
+
+        void op2(int opcode, int operand, int stackDelta) {
+            u1(opcode);
+            u2(operand);
+            adjust(stackDelta);
+        }
+
+        void jump(int opcode, Label target, int stackDelta) {
+            int at = length;
+            u1(opcode);
+            adjust(stackDelta);
+            if (target.stack < 0) target.stack = stack;
+            if (target.position >= 0) {
+                u2(target.position - at);
+            } else {
+                target.fixups.add(new int[] { at, length });
+                u2(0);
+            }
+        }
+
+        /**
+         * Marks the current position as the target of the label.
+         * After an unconditional jump, the stack depth is taken from the label.
+         */
+        void place(Label label, boolean reachable) {
+            label.position = length;
+            for (int[] fix : label.fixups) {
+                int offset = length - fix[0];
+                bytes[fix[1]] = (byte) (offset >> 8);
+                bytes[fix[1] + 1] = (byte) offset;
+            }
+            if (!reachable && label.stack >= 0) stack = label.stack;
+            else label.stack = stack;
+        }
+
+        /**
+         * Sets the stack depth after an unconditional jump or return.
+         */
+        void setStack(int depth) {
+            stack = depth;
+        }
+
+        int getStack() {
+            return stack;
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int b) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) b;
+        }
+
+        private void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+    }
+}
@@ -1,22 +1,200 @@
 package edu.sjsu.fwjs;
 
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.HashMap;
 
 public class Environment {
-    private Map<String,Value> env = new HashMap<String,Value>();
+    // Names outside of the frame layout (globals created at run time,
+    // or frames of trees that were never resolved).  Created on demand.
+    private Map<String,Value> env;
     private Environment outerEnv;
+    // Array-backed frame.  A null slot (or empty Cell) means the variable
+    // has not been declared (yet) in this scope.
+    private Scope scope;
+    private Value[] slots;
+    // Where print writes outside of a run; null means System.out.
+    // Inherited by inner frames.
+    private OutputSink out;
+    // A frozen global environment that this one overlays: names missing
+    // here are read from it, and writes stay here (copy-on-write).
+    private Environment base;
+    // Set once a global environment is shared as a base; writes then fail.
+    private volatile boolean frozen;
 
     /**
      * Constructor for global environment
      */
-    public Environment() {}
+    public Environment() {
+        if (Metrics.ENABLED) Metrics.environments.increment();
+    }
 
     /**
      * Constructor for local environment of a function
      */
     public Environment(Environment outerEnv) {
+        if (Metrics.ENABLED) Metrics.environments.increment();
         this.outerEnv = outerEnv;
+        if (outerEnv != null) this.out = outerEnv.out;
+    }
+
+    /**
+     * Constructor for a global environment laid out by the Resolver.
+     */
+    Environment(Scope scope) {
+        this(null, scope);
+    }
+
+    /**
+     * Constructor for the local environment of a resolved function.
+     */
+    Environment(Environment outerEnv, Scope scope) {
+        if (Metrics.ENABLED) Metrics.environments.increment();
+        this.outerEnv = outerEnv;
+        if (outerEnv != null) this.out = outerEnv.out;
+        this.scope = scope;
+        this.slots = new Value[scope.size()];
+        if (scope.hasCells()) newCells();
+    }
+
+    /**
+     * Constructor for the variables captured by a closure (see
+     * FunctionDeclExpr.capture), with the given values or Cells.
+     */
+    Environment(Environment outerEnv, Scope scope, Value[] captured) {
+        if (Metrics.ENABLED) Metrics.environments.increment();
+        this.outerEnv = outerEnv;
+        if (outerEnv != null) this.out = outerEnv.out;
+        this.scope = scope;
+        this.slots = captured;
+    }
+
+    /**
+     * Constructor for a global environment laid out by the Resolver,
+     * on top of a frozen one, e.g. globals set up by a prelude.
+     *
+     * The globals of the base are copied in, with everything of the base
+     * that can change: closures, the environments they were made in and
+     * the Cells they share.  Closures of the copy run in this environment,
+     * so prelude functions assign this run's globals, and no two runs
+     * share a variable.  Ints, booleans and null are shared as they are.
+     */
+    Environment(Scope scope, Environment base) {
+        this(null, scope);
+        if (base == null || !base.frozen || base.outerEnv != null)
+            throw new IllegalArgumentException("Base must be a frozen global environment");
+        this.base = base;
+        Map<Object,Object> copies = new IdentityHashMap<Object,Object>();
+        for (Environment b = base; b != null; b = b.base)
+            copies.put(b, this);
+        for (Environment b = base; b != null; b = b.base) {
+            if (b.scope != null) {
+                for (int i = 0; i < b.slots.length && i < b.scope.size(); i++) {
+                    String name = b.scope.nameAt(i);
+                    if (b.slots[i] != null && getOwn(name) == null)
+                        putLocal(name, copy(b.slots[i], copies));
+                }
+            }
+            if (b.env != null)
+                for (Map.Entry<String,Value> var : b.env.entrySet())
+                    if (getOwn(var.getKey()) == null)
+                        putLocal(var.getKey(), copy(var.getValue(), copies));
+        }
+    }
+
+    /**
+     * The copy of a value of a base for an overlay; see above.
+     */
+    private static Value copy(Value v, Map<Object,Object> copies) {
+        if (!(v instanceof Cell) && !(v instanceof ClosureVal)) return v;
+        Value done = (Value) copies.get(v);
+        if (done != null) return done;
+        if (v instanceof Cell) {
+            Cell cell = (Cell) v;
+            Cell c = new Cell();
+            copies.put(cell, c);
+            c.value = copy(cell.value, copies);
+            c.fallback = copy(cell.fallback, copies);
+            return c;
+        }
+        ClosureVal closure = (ClosureVal) v;
+        ClosureVal c = closure.withEnv(copy(closure.getEnv(), copies));
+        copies.put(closure, c);
+        return c;
+    }
+
+    private static Environment copy(Environment e, Map<Object,Object> copies) {
+        if (e == null) return null;
+        Environment done = (Environment) copies.get(e);
+        if (done != null) return done;
+        Environment c = new Environment(copy(e.outerEnv, copies));
+        copies.put(e, c);
+        c.scope = e.scope;
+        if (e.slots != null) {
+            c.slots = new Value[e.slots.length];
+            for (int i = 0; i < e.slots.length; i++)
+                c.slots[i] = copy(e.slots[i], copies);
+        }
+        if (e.env != null) {
+            c.env = new HashMap<String,Value>();
+            for (Map.Entry<String,Value> var : e.env.entrySet())
+                c.env.put(var.getKey(), copy(var.getValue(), copies));
+        }
+        return c;
+    }
+
+    /**
+     * Makes this global environment read-only, so that it can be shared
+     * by any number of overlays (and threads), each with its own copy of
+     * its variables.
+     */
+    public void freeze() {
+        if (outerEnv != null)
+            throw new IllegalStateException("Only a global environment can be frozen");
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Sends the output of print in this environment, and in the frames of
+     * functions created in it, to the given sink instead of System.out.
+     * Set it on the global environment before running a program, and
+     * flush the sink when the program ends.  Program.run makes it the sink
+     * of the whole run, so that functions of a prelude print there too.
+     */
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     * Sends the output of print to the given stream, one line at a time.
+     */
+    public void setOutput(PrintStream out) {
+        OutputSink sink = new OutputSink(out, 256);
+        sink.setFlushSize(1);
+        this.out = sink;
+    }
+
+    /**
+     * Where print writes: the sink of the run in progress on this thread
+     * (see OutputSink.run), or else the one set for this environment.
+     */
+    public OutputSink getOutput() {
+        OutputSink sink = OutputSink.current();
+        if (sink != null) return sink;
+        return out != null ? out : OutputSink.stdout();
+    }
+
+    /**
+     * The sink set for this environment, or null.
+     */
+    OutputSink getOwnOutput() {
+        return out;
     }
 
     /**
@@ -25,22 +203,25 @@ public class Environment {
      * Otherwise, search for the variable in the outer scope.
      * If we are at the outermost scope (AKA the global scope)
      * null is returned (similar to how JS returns undefined.
-     */ 
+     */
     public Value resolveVar(String varName) {
-    	Environment current = this;
-        Value val = current.env.get(varName);
-        
+        Environment current = this;
+        Value val = current.getLocal(varName);
+        int depth = 0;
+
         //Nick: multiple outer environments!!  Search them all
-        while (current.env.get(varName) == null && current.outerEnv != null) {
-        	current = current.outerEnv;
-        	val = current.env.get(varName);
+        while (val == null && current.outerEnv != null) {
+            current = current.outerEnv;
+            val = current.getLocal(varName);
+            depth++;
         }
-        
+        if (Metrics.ENABLED) Metrics.lookup(Metrics.nameLookups, depth);
+
         if (val == null)
-        	return new NullVal();
+            return new NullVal();
         else
-        	return val;
-    } 
+            return val;
+    }
 
     /**
      * Used for updating existing variables.
@@ -48,41 +229,11 @@ public class Environment {
      * or any of the function's outer scopes, the var is stored in the global scope.
      */
     public void updateVar(String key, Value v) {
-		/*
-        Value oldVal = resolveVar(key);
-        Environment next = outerEnv;
-        if(oldVal == null)
-        {
-            /*
-            Environment next = outerEnv;
-            while(next != null)
-                next = next.outerEnv;
-            env.put(key, v);
-            */ /*
-            
-            while(next.outerEnv != null)
-                next = next.outerEnv;
-            next.env.put(key, v);
-            
-        }
+        //try recursive solution
+        if (outerEnv == null || getLocal(key) != null) //in global or current
+            putLocal(key, v);
         else
-        {
-            //env.put(key, v);
-            
-            if(next != null)
-            {
-                while (next.env.get(key) == null && next.outerEnv != null)
-                    next = next.outerEnv;
-                next.env.put(key, v);
-            }
-            else
-                env.put(key,  v);
-        }  */
-		//try recursive solution
-		if (outerEnv == null || env.containsKey(key)) //in global or current
-			env.put(key, v);
-		else
-			outerEnv.updateVar(key, v);
+            outerEnv.updateVar(key, v);
     }
 
     /**
@@ -91,12 +242,214 @@ public class Environment {
      * a RuntimeException is thrown.
      */
     public void createVar(String key, Value v) {
-        //System.out.println(key);
-        //System.out.println(v.toString());
-        //System.out.println(env);
-        if(!env.containsKey(key))
-            env.put(key, v);
+        if(getLocal(key) == null)
+            putLocal(key, v);
         else
             throw new RuntimeException();
     }
+
+    /**
+     * Reads a slot of the frame found depth scopes out.
+     * Returns null if that frame does not use the given layout
+     * or the variable is not declared there yet; callers then
+     * fall back to resolveVar.
+     */
+    Value getSlot(int depth, Scope scope, int slot) {
+        if (Metrics.ENABLED) Metrics.lookup(Metrics.slotLookups, depth);
+        Environment e = this;
+        for (int i = 0; i < depth && e != null; i++)
+            e = e.outerEnv;
+        if (e == null || e.scope != scope || slot >= e.slots.length)
+            return null;
+        Value v = e.slots[slot];
+        return v instanceof Cell ? ((Cell) v).get() : v;
+    }
+
+    /**
+     * Like getSlot, but returns a Cell itself rather than its value,
+     * so that a new closure can share it.
+     */
+    Value getCapturedSlot(int depth, Scope scope, int slot) {
+        Environment e = depth == 0 ? this : outerEnv;
+        if (e == null || e.scope != scope || slot >= e.slots.length)
+            return null;
+        return e.slots[slot];
+    }
+
+    /**
+     * Overwrites an already declared slot of the frame found depth scopes out.
+     * Returns false if the slot cannot be used, in which case
+     * the caller falls back to updateVar.
+     */
+    boolean updateSlot(int depth, Scope scope, int slot, Value v) {
+        Environment e = this;
+        for (int i = 0; i < depth && e != null; i++)
+            e = e.outerEnv;
+        if (e == null || e.scope != scope || slot >= e.slots.length || e.frozen)
+            return false;
+        Value old = e.slots[slot];
+        if (old instanceof Cell) {
+            Cell cell = ((Cell) old).declared();
+            if (cell == null) return false;
+            cell.value = v;
+            return true;
+        }
+        if (old == null) return false;
+        e.slots[slot] = v;
+        return true;
+    }
+
+    /**
+     * Turns a cleared pooled frame into the frame of a new call
+     * of a function with the given layout; see FramePool.
+     */
+    void reset(Environment outerEnv, Scope scope) {
+        this.outerEnv = outerEnv;
+        if (outerEnv != null) this.out = outerEnv.out;
+        this.scope = scope;
+        if (slots.length < scope.size())
+            slots = new Value[scope.size()];
+        if (scope.hasCells()) newCells();
+    }
+
+    /**
+     * Puts a new, empty Cell in every slot that needs one.  Closures of
+     * an earlier call may still hold the old ones.  A variable that shadows
+     * a captured one falls back to it (see Cell.fallback).
+     */
+    private void newCells() {
+        for (int i = 0; i < scope.size(); i++) {
+            if (!scope.isCell(i)) continue;
+            Cell cell = new Cell();
+            int f = scope.getFallback(i);
+            if (f >= 0 && outerEnv != null && outerEnv.scope == scope.getFallbackScope())
+                cell.fallback = outerEnv.slots[f];
+            slots[i] = cell;
+        }
+    }
+
+    /**
+     * Drops everything a pooled frame refers to once its call has returned.
+     */
+    void clear() {
+        outerEnv = null;
+        out = null;
+        env = null;
+        Arrays.fill(slots, null);
+    }
+
+    /**
+     * The slot array of the frame, for Snapshot.
+     * Slots of Cell variables hold the Cell.
+     */
+    Value[] getSlots() {
+        return slots;
+    }
+
+    Environment getOuter() {
+        return outerEnv;
+    }
+
+    /**
+     * The global environment at the end of the chain.
+     */
+    Environment getGlobal() {
+        Environment e = this;
+        while (e.outerEnv != null)
+            e = e.outerEnv;
+        return e;
+    }
+
+    Scope getScope() {
+        return scope;
+    }
+
+    Environment getBase() {
+        return base;
+    }
+
+    /**
+     * Names kept outside of the slots, or null if there are none.
+     */
+    Map<String,Value> getVars() {
+        return env;
+    }
+
+    /**
+     * Puts back the variables of a frame read from a Snapshot.
+     */
+    void restore(Value[] slots, Map<String,Value> vars) {
+        this.slots = slots;
+        this.env = vars;
+    }
+
+    /**
+     * Slot-based version of createVar for the current frame.
+     */
+    void createSlot(Scope scope, int slot, String key, Value v) {
+        if (this.scope != scope) {
+            createVar(key, v);
+        } else if (slot < slots.length && slotValue(slot) != null
+                || base != null && base.getLocal(key) != null) {
+            throw new RuntimeException();
+        } else {
+            setSlot(slot, v);
+        }
+    }
+
+    /**
+     * Binds a function parameter in this frame.
+     * Unlike createVar, a repeated parameter name simply overwrites the earlier one.
+     */
+    void bindParam(int slot, String key, Value v) {
+        if (scope != null)
+            setSlot(slot, v);
+        else
+            putLocal(key, v);
+    }
+
+    // The variable of this frame itself, not looking in the base.
+    private Value getOwn(String key) {
+        int slot = scope == null ? -1 : scope.indexOf(key);
+        if (slot >= 0)
+            return slot < slots.length ? slotValue(slot) : null;
+        return env != null ? env.get(key) : null;
+    }
+
+    private Value getLocal(String key) {
+        Value v = getOwn(key);
+        return v == null && base != null ? base.getLocal(key) : v;
+    }
+
+    private void putLocal(String key, Value v) {
+        if (frozen)
+            throw new IllegalStateException("Cannot assign " + key + " in a frozen environment");
+        if (scope != null) {
+            int slot = scope.indexOf(key);
+            if (slot >= 0) {
+                setSlot(slot, v);
+                return;
+            }
+        }
+        if (env == null)
+            env = new HashMap<String,Value>();
+        env.put(key, v);
+    }
+
+    // The frame's own variable, not one it shadows: lookups by name
+    // go on to the outer frames by themselves.
+    private Value slotValue(int slot) {
+        Value v = slots[slot];
+        return v instanceof Cell ? ((Cell) v).value : v;
+    }
+
+    private void setSlot(int slot, Value v) {
+        // The global layout can grow after the frame was created.
+        if (slot >= slots.length)
+            slots = Arrays.copyOf(slots, Math.max(scope.size(), slot + 1));
+        if (slots[slot] instanceof Cell)
+            ((Cell) slots[slot]).value = v;
+        else
+            slots[slot] = v;
+    }
 }
@@ -1,6 +1,5 @@
 package edu.sjsu.fwjs;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -11,6 +10,32 @@ public interface Expression {
      * Evaluate the expression in the context of the specified environment.
      */
     public Value evaluate(Environment env);
+
+    /**
+     * Evaluate an expression that must produce a number,
+     * without boxing the result in an IntVal.
+     * Expressions that can compute the int directly override this.
+     */
+    public default int evaluateInt(Environment env) {
+        Value v = evaluate(env);
+        if (v instanceof IntVal) return ((IntVal) v).toInt();
+        throw new UnexpectedResultException(v);
+    }
+
+    /**
+     * Evaluate an expression that must produce a boolean,
+     * without boxing the result in a BoolVal.
+     */
+    public default boolean evaluateBoolean(Environment env) {
+        Value v = evaluate(env);
+        if (v instanceof BoolVal) return ((BoolVal) v).toBoolean();
+        throw new UnexpectedResultException(v);
+    }
+
+    /**
+     * Dispatch to the matching method of an ExpressionVisitor.
+     */
+    public <T> T accept(ExpressionVisitor<T> v);
 }
 
 // NOTE: Using package access so that all implementations of Expression
@@ -27,6 +52,20 @@ class ValueExpr implements Expression {
     public Value evaluate(Environment env) {
         return this.val;
     }
+    public int evaluateInt(Environment env) {
+        if (val instanceof IntVal) return ((IntVal) val).toInt();
+        throw new UnexpectedResultException(val);
+    }
+    public boolean evaluateBoolean(Environment env) {
+        if (val instanceof BoolVal) return ((BoolVal) val).toBoolean();
+        throw new UnexpectedResultException(val);
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitValue(this);
+    }
+    Value getValue() {
+        return val;
+    }
 }
 
 /**
@@ -34,12 +73,40 @@ class ValueExpr implements Expression {
  */
 class VarExpr implements Expression {
     private String varName;
+    // Lexical address filled in by the Resolver.
+    private Scope scope;
+    private int depth;
+    private int slot;
     public VarExpr(String varName) {
         this.varName = varName;
     }
     public Value evaluate(Environment env) {
+        if (scope != null) {
+            Value v = env.getSlot(depth, scope, slot);
+            if (v != null) return v;
+        }
         return env.resolveVar(varName);
     }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitVar(this);
+    }
+    String getVarName() {
+        return varName;
+    }
+    void bind(int depth, Scope scope, int slot) {
+        this.depth = depth;
+        this.scope = scope;
+        this.slot = slot;
+    }
+    Scope getScope() {
+        return scope;
+    }
+    int getDepth() {
+        return depth;
+    }
+    int getSlot() {
+        return slot;
+    }
 }
 
 /**
@@ -52,41 +119,65 @@ class PrintExpr implements Expression {
     }
     public Value evaluate(Environment env) {
         Value v = exp.evaluate(env);
-        System.out.println(v.toString());
+        env.getOutput().print(v);
         return v;
     }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitPrint(this);
+    }
+    Expression getExp() {
+        return exp;
+    }
 }
 /**
  * Binary operators (+, -, *, etc).
- * Currently only numbers are supported.
+ * Currently only numbers are supported, except for == which compares any values.
+ * Nested operators pass plain ints and booleans to each other;
+ * a result is only boxed when evaluate is called on the outermost one.
+ *
+ * The work is done by a BinOpNode that rewrites itself based on the
+ * operand types it sees (see BinOpNode.java).
  */
 class BinOpExpr implements Expression {
     private Op op;
     private Expression e1;
     private Expression e2;
+    private BinOpNode node;
     public BinOpExpr(Op op, Expression e1, Expression e2) {
         this.op = op;
         this.e1 = e1;
         this.e2 = e2;
+        this.node = new UninitializedBinOpNode(this);
     }
 
-    //@SuppressWarnings("incomplete-switch")
     public Value evaluate(Environment env) {
-        int val1 = ((IntVal)e1.evaluate(env)).toInt();
-        int val2 = ((IntVal)e2.evaluate(env)).toInt();
-        switch (op) {
-        case ADD:		return new IntVal(val1 + val2);
-        case SUBTRACT:	return new IntVal(val1 - val2);
-        case MULTIPLY:	return new IntVal(val1 * val2);
-        case DIVIDE:	return new IntVal(val1 / val2);
-        case MOD:		return new IntVal(val1 % val2);
-        case GT:		return new BoolVal(val1 > val2);
-        case GE:		return new BoolVal(val1 >= val2);
-        case LT:		return new BoolVal(val1 < val2);
-        case LE:		return new BoolVal(val1 <= val2);
-        case EQ:		return new BoolVal(val1 == val2);
-        default:		return new NullVal(); //not supported
-        }
+        return node.execute(env);
+    }
+
+    public int evaluateInt(Environment env) {
+        return node.executeInt(env);
+    }
+
+    public boolean evaluateBoolean(Environment env) {
+        return node.executeBoolean(env);
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitBinOp(this);
+    }
+    Op getOp() {
+        return op;
+    }
+    Expression getLeft() {
+        return e1;
+    }
+    Expression getRight() {
+        return e2;
+    }
+    BinOpNode getNode() {
+        return node;
+    }
+    void replace(BinOpNode node) {
+        this.node = node;
     }
 }
 
@@ -104,7 +195,7 @@ class IfExpr implements Expression {
         this.els = els;
     }
     public Value evaluate(Environment env) {
-       boolean c = ((BoolVal)cond.evaluate(env)).toBoolean();
+       boolean c = condition(env);
        if (c) {
     	   return thn.evaluate(env);
        } else if (els != null) { //No else block
@@ -112,6 +203,37 @@ class IfExpr implements Expression {
        }
 	   return new NullVal(); //Return
     }
+    public int evaluateInt(Environment env) {
+        if (els == null) return Expression.super.evaluateInt(env);
+        return condition(env) ? thn.evaluateInt(env) : els.evaluateInt(env);
+    }
+    public boolean evaluateBoolean(Environment env) {
+        if (els == null) return Expression.super.evaluateBoolean(env);
+        return condition(env) ? thn.evaluateBoolean(env) : els.evaluateBoolean(env);
+    }
+    /**
+     * A condition that is not a boolean is a type error, not an unexpected
+     * result of the if itself.
+     */
+    private boolean condition(Environment env) {
+        try {
+            return cond.evaluateBoolean(env);
+        } catch (UnexpectedResultException ex) {
+            throw ex.asCastError(BoolVal.class);
+        }
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitIf(this);
+    }
+    Expression getCond() {
+        return cond;
+    }
+    Expression getThen() {
+        return thn;
+    }
+    Expression getElse() {
+        return els;
+    }
 }
 
 /**
@@ -126,10 +248,30 @@ class WhileExpr implements Expression {
     }
     public Value evaluate(Environment env) {
     	Value returnMe = new NullVal();
-        while (((BoolVal)cond.evaluate(env)).toBoolean())
+        Fuel fuel = Fuel.enabled ? Fuel.current() : null;
+        while (condition(env)) {
+            if (Metrics.ENABLED) Metrics.loopIterations.increment();
+            if (fuel != null) fuel.charge();
         	returnMe = body.evaluate(env);
+        }
         return returnMe;
     }
+    private boolean condition(Environment env) {
+        try {
+            return cond.evaluateBoolean(env);
+        } catch (UnexpectedResultException ex) {
+            throw ex.asCastError(BoolVal.class);
+        }
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitWhile(this);
+    }
+    Expression getCond() {
+        return cond;
+    }
+    Expression getBody() {
+        return body;
+    }
 }
 
 /**
@@ -146,6 +288,23 @@ class SeqExpr implements Expression {
         e1.evaluate(env);
         return e2.evaluate(env);
     }
+    public int evaluateInt(Environment env) {
+        e1.evaluate(env);
+        return e2.evaluateInt(env);
+    }
+    public boolean evaluateBoolean(Environment env) {
+        e1.evaluate(env);
+        return e2.evaluateBoolean(env);
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitSeq(this);
+    }
+    Expression getFirst() {
+        return e1;
+    }
+    Expression getSecond() {
+        return e2;
+    }
 }
 
 /**
@@ -154,13 +313,44 @@ class SeqExpr implements Expression {
 class VarDeclExpr implements Expression {
     private String varName;
     private Expression exp;
+    // Slot in the current frame, filled in by the Resolver.
+    private Scope scope;
+    private int slot;
     public VarDeclExpr(String varName, Expression exp) {
         this.varName = varName;
         this.exp = exp;
     }
     public Value evaluate(Environment env) {
-        env.createVar(varName, exp.evaluate(env));
-        return env.resolveVar(varName);
+        return declare(env, exp.evaluate(env));
+    }
+    /**
+     * Declares the variable with an already evaluated value.
+     */
+    Value declare(Environment env, Value v) {
+        if (scope != null)
+            env.createSlot(scope, slot, varName, v);
+        else
+            env.createVar(varName, v);
+        return v;
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitVarDecl(this);
+    }
+    String getVarName() {
+        return varName;
+    }
+    Expression getExp() {
+        return exp;
+    }
+    void bind(Scope scope, int slot) {
+        this.scope = scope;
+        this.slot = slot;
+    }
+    Scope getScope() {
+        return scope;
+    }
+    int getSlot() {
+        return slot;
     }
 }
 
@@ -172,13 +362,47 @@ class VarDeclExpr implements Expression {
 class AssignExpr implements Expression {
     private String varName;
     private Expression e;
+    // Lexical address filled in by the Resolver.
+    private Scope scope;
+    private int depth;
+    private int slot;
     public AssignExpr(String varName, Expression e) {
         this.varName = varName;
         this.e = e;
     }
     public Value evaluate(Environment env) {
-        env.updateVar(varName, e.evaluate(env));
-        return env.resolveVar(varName);
+        return assign(env, e.evaluate(env));
+    }
+    /**
+     * Assigns an already evaluated value to the variable.
+     */
+    Value assign(Environment env, Value v) {
+        if (scope == null || !env.updateSlot(depth, scope, slot, v))
+            env.updateVar(varName, v);
+        return v;
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitAssign(this);
+    }
+    String getVarName() {
+        return varName;
+    }
+    Expression getExp() {
+        return e;
+    }
+    void bind(int depth, Scope scope, int slot) {
+        this.depth = depth;
+        this.scope = scope;
+        this.slot = slot;
+    }
+    Scope getScope() {
+        return scope;
+    }
+    int getDepth() {
+        return depth;
+    }
+    int getSlot() {
+        return slot;
     }
 }
 
@@ -188,12 +412,125 @@ class AssignExpr implements Expression {
 class FunctionDeclExpr implements Expression {
     private List<String> params;
     private Expression body;
+    // Frame layout of the function body, filled in by the Resolver.
+    private Scope scope;
+    private int[] paramSlots;
+    // The variables of enclosing functions that the function uses, and
+    // where to find each of them when a closure is made: in a slot of the
+    // enclosing function's frame (depth 0) or of its captures (depth 1).
+    private Scope captures;
+    private Scope[] captureFrom;
+    private int[] captureDepths;
+    private int[] captureSlots;
+    // Tier-up state: calls so far, and the body compiled by the HotFunctionCompiler.
+    // Calls may race between threads; at worst the body is compiled twice.
+    private int calls;
+    private volatile CompiledBody compiled;
+    // For profiles: the variable the function was first bound to (null if
+    // it never was), and the source line it starts on (0 if unknown).
+    private String name;
+    private int line;
     public FunctionDeclExpr(List<String> params, Expression body) {
         this.params = params;
         this.body = body;
+        markTailCalls(body);
     }
     public Value evaluate(Environment env) {
-        return new ClosureVal(params, body, env);
+        return new ClosureVal(this, capture(env));
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitFunctionDecl(this);
+    }
+    List<String> getParams() {
+        return params;
+    }
+    Expression getBody() {
+        return body;
+    }
+    void bind(Scope scope, int[] paramSlots) {
+        this.scope = scope;
+        this.paramSlots = paramSlots;
+    }
+    void bindCaptures(Scope captures, Scope[] from, int[] depths, int[] slots) {
+        this.captures = captures;
+        this.captureFrom = from;
+        this.captureDepths = depths;
+        this.captureSlots = slots;
+    }
+    Scope getCaptures() {
+        return captures;
+    }
+    /**
+     * The environment that a closure made in env runs in: a record of
+     * just the variables the function captures, on top of the globals.
+     * Variables that can change are shared through their Cells; the
+     * others are copied.  Without captures, that is the globals alone.
+     * Functions that were never resolved keep the whole of env instead.
+     */
+    Environment capture(Environment env) {
+        if (captures == null) return env;
+        Environment globals = env.getGlobal();
+        int n = captureSlots.length;
+        if (n == 0) return globals;
+        Value[] values = new Value[n];
+        for (int i = 0; i < n; i++)
+            values[i] = env.getCapturedSlot(captureDepths[i], captureFrom[i], captureSlots[i]);
+        return new Environment(globals, captures, values);
+    }
+    Scope getScope() {
+        return scope;
+    }
+    int[] getParamSlots() {
+        return paramSlots;
+    }
+    String getName() {
+        return name;
+    }
+    void setName(String name) {
+        this.name = name;
+    }
+    int getLine() {
+        return line;
+    }
+    void setLine(int line) {
+        this.line = line;
+    }
+    /**
+     * How the function shows up in a profile, e.g. fact:3.
+     */
+    String getLabel() {
+        String label = name != null ? name : "(anonymous)";
+        return line > 0 ? label + ":" + line : label;
+    }
+    /**
+     * Marks the calls whose value is the value of the function, so that
+     * ClosureVal.invoke can run them without growing the Java stack.
+     */
+    private static void markTailCalls(Expression e) {
+        if (e instanceof FunctionAppExpr) {
+            ((FunctionAppExpr) e).markTail();
+        } else if (e instanceof IfExpr) {
+            markTailCalls(((IfExpr) e).getThen());
+            markTailCalls(((IfExpr) e).getElse());
+        } else if (e instanceof SeqExpr) {
+            markTailCalls(((SeqExpr) e).getSecond());
+        }
+    }
+    /**
+     * Counts a call of the function, and returns its compiled body once
+     * the function is hot.  Returns null while it is still interpreted.
+     */
+    CompiledBody tierUp() {
+        if (compiled == null) {
+            int threshold = HotFunctionCompiler.getThreshold();
+            // Compile exactly once; if that fails the function stays interpreted.
+            if (threshold > 0 && ++calls == threshold)
+                compiled = HotFunctionCompiler.compile(this);
+        }
+        return compiled;
+    }
+    CompiledBody getCompiled() {
+        return compiled;
     }
 }
 
@@ -203,16 +540,118 @@ class FunctionDeclExpr implements Expression {
 class FunctionAppExpr implements Expression {
     private Expression e;
     private List<Expression> args;
+    // The same, for the evaluator.
+    private final Expression[] argArray;
+    // Set when the call is in tail position of a function body.
+    private boolean tail;
+    // Inline cache of the functions called here, see CallNode.
+    private CallNode node;
+    // Calls that did and did not match the cache; only counted with metrics on.
+    private long hits;
+    private long misses;
     public FunctionAppExpr(Expression e, List<Expression> args) {
         this.e = e;
         this.args = args;
+        this.argArray = args.toArray(new Expression[0]);
+        this.node = new UninitializedCallNode(this);
     }
+    /**
+     * The callee is evaluated first, then the arguments, left to right,
+     * each written straight into the callee's new frame.
+     */
     public Value evaluate(Environment env) {
-        List<Value> argVals = new ArrayList<>();
         ClosureVal closure = (ClosureVal) e.evaluate(env);
-		for (Expression expr : args)
-			argVals.add(expr.evaluate(env));
-        return closure.apply(argVals);
+        if (tail && closure.runsIn(env))
+            return new TailCall(closure, reuseFrame(closure, env));
+        if (!closure.hasPooledFrames()) {
+            Environment frame = closure.newFrame();
+            node.bind(closure, frame, argArray, env);
+            if (tail)
+                return new TailCall(closure, frame); // run by the enclosing invoke
+            return closure.invoke(frame);
+        }
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        if (tail) {
+            // The enclosing invoke takes over the frame, unless binding fails.
+            try {
+                Environment frame = closure.newFrame(pool);
+                node.bind(closure, frame, argArray, env);
+                return new TailCall(closure, frame, pool);
+            } catch (RuntimeException | Error e) {
+                pool.release(mark);
+                throw e;
+            }
+        }
+        try {
+            Environment frame = closure.newFrame(pool);
+            node.bind(closure, frame, argArray, env);
+            return closure.invoke(frame);
+        } finally {
+            pool.release(mark);
+        }
+    }
+    /**
+     * Evaluates the arguments of a tail call that runs in the frame of
+     * its caller, then binds them in that frame.
+     */
+    private Environment reuseFrame(ClosureVal closure, Environment env) {
+        Expression[] a = argArray;
+        switch (a.length) {
+        case 0: return closure.tailFrame(env);
+        case 1: return closure.tailFrame(env, a[0].evaluate(env));
+        case 2: return closure.tailFrame(env, a[0].evaluate(env), a[1].evaluate(env));
+        case 3: return closure.tailFrame(env, a[0].evaluate(env), a[1].evaluate(env),
+                a[2].evaluate(env));
+        case 4: return closure.tailFrame(env, a[0].evaluate(env), a[1].evaluate(env),
+                a[2].evaluate(env), a[3].evaluate(env));
+        default:
+            Value[] values = new Value[a.length];
+            for (int i = 0; i < a.length; i++)
+                values[i] = a[i].evaluate(env);
+            return closure.tailFrame(env, values);
+        }
+    }
+    public <T> T accept(ExpressionVisitor<T> v) {
+        return v.visitFunctionApp(this);
+    }
+    Expression getFunction() {
+        return e;
+    }
+    List<Expression> getArgs() {
+        return args;
+    }
+    void markTail() {
+        tail = true;
+    }
+    boolean isTail() {
+        return tail;
+    }
+    CallNode getNode() {
+        return node;
+    }
+    void replace(CallNode node) {
+        this.node = node;
+    }
+    void countHit() {
+        hits++;
+    }
+    void countMiss() {
+        misses++;
+    }
+    long getHits() {
+        return hits;
+    }
+    long getMisses() {
+        return misses;
+    }
+    /**
+     * The state of the inline cache, for diagnosis.
+     */
+    String getCacheState() {
+        if (node instanceof MegamorphicCallNode) return "megamorphic";
+        int n = node.depth();
+        return n == 0 ? "uninitialized" : n == 1 ? "monomorphic" : "polymorphic(" + n + ")";
     }
 }
 
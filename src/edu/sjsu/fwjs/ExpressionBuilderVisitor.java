@@ -134,7 +134,9 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
             params.add(ctx.ID().get(i).getText());
         }
         Expression body = visit(ctx.block()); //Nick: Adding visit()
-        return new FunctionDeclExpr(params, body); 
+        FunctionDeclExpr f = new FunctionDeclExpr(params, body);
+        f.setLine(ctx.getStart().getLine());
+        return f;
 		/*
 		List<String> params = new ArrayList<>();
 		for (TerminalNode tn : ctx.params().ID())
@@ -146,12 +148,14 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
 	// NEEDS TESTING!!!
     public Expression visitFuncAppl(FeatherweightJavaScriptParser.FuncApplContext ctx) //Nick: renamed method
     { 
+		// expr(0) is the function; the rest are the arguments.
+		List<ExprContext> exprs = ctx.expr();
 		List<Expression> args = new ArrayList<>();
-		for (ExprContext ec : ctx.expr()) {
+		for (ExprContext ec : exprs.subList(1, exprs.size())) {
 			Expression expr = visit(ec);
 			args.add(expr);
 		}
-		return new FunctionAppExpr(visit(ctx.expr(0)), args);
+		return new FunctionAppExpr(visit(exprs.get(0)), args);
 		/*
 		List<Expression> args = new ArrayList<>();
 		for (ExprContext ec : ctx.expr()) {
@@ -165,6 +169,7 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
     {
         String name = "" + ctx.ID().getText();
         Expression val = visit(ctx.expr()); //Nick: Adding visit()
+        nameFunction(val, name);
         return new VarDeclExpr(name, val);
     }
 	
@@ -175,8 +180,17 @@ public class ExpressionBuilderVisitor extends FeatherweightJavaScriptBaseVisitor
 	public Expression visitAssign(FeatherweightJavaScriptParser.AssignContext ctx) {
 		Expression expr = visit(ctx.expr());
 		String var = "" + ctx.ID().getText();
+		nameFunction(expr, var);
 		return new AssignExpr(var, expr);
 	}
+
+	/**
+	 * A function literal bound straight to a variable is named after it.
+	 */
+	private static void nameFunction(Expression e, String name) {
+		if (e instanceof FunctionDeclExpr && ((FunctionDeclExpr) e).getName() == null)
+			((FunctionDeclExpr) e).setName(name);
+	}
 	
 	// Extra method for finding appropriate enum
 	private Op findEnum(String v) {
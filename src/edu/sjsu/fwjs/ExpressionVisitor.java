@@ -0,0 +1,80 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Visitor over the FWJS expression tree, used by the passes that run
+ * between ExpressionBuilderVisitor and evaluation.
+ * Mirrors the visitor interface ANTLR generates for the parse tree.
+ */
+public interface ExpressionVisitor<T> {
+    T visitValue(ValueExpr e);
+    T visitVar(VarExpr e);
+    T visitPrint(PrintExpr e);
+    T visitBinOp(BinOpExpr e);
+    T visitIf(IfExpr e);
+    T visitWhile(WhileExpr e);
+    T visitSeq(SeqExpr e);
+    T visitVarDecl(VarDeclExpr e);
+    T visitAssign(AssignExpr e);
+    T visitFunctionDecl(FunctionDeclExpr e);
+    T visitFunctionApp(FunctionAppExpr e);
+}
+
+/**
+ * Default visitor that walks every child expression and returns null,
+ * in the spirit of the generated FeatherweightJavaScriptBaseVisitor.
+ * Passes override only the nodes they care about.
+ */
+class ExpressionBaseVisitor<T> implements ExpressionVisitor<T> {
+    protected T visit(Expression e) {
+        return e == null ? null : e.accept(this);
+    }
+    public T visitValue(ValueExpr e) {
+        return null;
+    }
+    public T visitVar(VarExpr e) {
+        return null;
+    }
+    public T visitPrint(PrintExpr e) {
+        visit(e.getExp());
+        return null;
+    }
+    public T visitBinOp(BinOpExpr e) {
+        visit(e.getLeft());
+        visit(e.getRight());
+        return null;
+    }
+    public T visitIf(IfExpr e) {
+        visit(e.getCond());
+        visit(e.getThen());
+        visit(e.getElse());
+        return null;
+    }
+    public T visitWhile(WhileExpr e) {
+        visit(e.getCond());
+        visit(e.getBody());
+        return null;
+    }
+    public T visitSeq(SeqExpr e) {
+        visit(e.getFirst());
+        visit(e.getSecond());
+        return null;
+    }
+    public T visitVarDecl(VarDeclExpr e) {
+        visit(e.getExp());
+        return null;
+    }
+    public T visitAssign(AssignExpr e) {
+        visit(e.getExp());
+        return null;
+    }
+    public T visitFunctionDecl(FunctionDeclExpr e) {
+        visit(e.getBody());
+        return null;
+    }
+    public T visitFunctionApp(FunctionAppExpr e) {
+        visit(e.getFunction());
+        for (Expression arg : e.getArgs())
+            visit(arg);
+        return null;
+    }
+}
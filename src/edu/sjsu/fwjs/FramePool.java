@@ -0,0 +1,88 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread stack of reusable frames, for resolved functions.  Closures
+ * made during a call keep only the variables they capture (see
+ * FunctionDeclExpr.capture), and the Cells of the ones that can change,
+ * never the frame itself, so once the call returns the frame is garbage.
+ * Calls take their frame from here instead of allocating a new
+ * Environment, and give it back when they return.  Reusing a frame puts
+ * new Cells in it.
+ *
+ * A call remembers the mark before it acquires its frame, and releases
+ * back to that mark in a finally block.  Releasing to a mark rather than
+ * popping one frame puts the stack back in order after an exception,
+ * however many nested releases it skipped.  Released frames are cleared,
+ * so that they do not keep values alive.  Only the first MAX_POOLED
+ * levels are pooled; deeper recursion gets fresh frames.
+ *
+ * A call in tail position sets up its callee's frame and returns it to
+ * the enclosing ClosureVal.invoke, which releases it when it is done.
+ */
+final class FramePool {
+    static final int MAX_POOLED = 256;
+    private static final ThreadLocal<FramePool> current = ThreadLocal.withInitial(FramePool::new);
+
+    private Environment[] frames = new Environment[16];
+    private int top;
+
+    private FramePool() {}
+
+    /**
+     * The current thread's pool.
+     */
+    static FramePool current() {
+        return current.get();
+    }
+
+    int mark() {
+        return top;
+    }
+
+    /**
+     * The frame for a new call of a function with the given layout,
+     * created in outerEnv.
+     */
+    Environment acquire(Environment outerEnv, Scope scope) {
+        int i = top++;
+        if (i >= MAX_POOLED)
+            return new Environment(outerEnv, scope);
+        if (i == frames.length)
+            frames = Arrays.copyOf(frames, Math.min(i * 2, MAX_POOLED));
+        Environment frame = frames[i];
+        if (frame == null) {
+            frame = new Environment(outerEnv, scope);
+            frames[i] = frame;
+            return frame;
+        }
+        if (Metrics.ENABLED) Metrics.framesReused.increment();
+        frame.reset(outerEnv, scope);
+        return frame;
+    }
+
+    /**
+     * Moves the top frame down to the given slot, whose frame is no longer
+     * used, and gives back everything above it.  This lets a loop of tail
+     * calls run on the same two frames.
+     */
+    void replace(int slot) {
+        int i = top - 1;
+        if (i < MAX_POOLED) {
+            Environment frame = frames[i];
+            frames[i] = frames[slot];
+            frames[slot] = frame;
+        }
+        release(slot + 1);
+    }
+
+    /**
+     * Gives back every frame acquired since the mark was taken.
+     */
+    void release(int mark) {
+        for (int i = Math.min(top, MAX_POOLED) - 1; i >= mark; i--)
+            frames[i].clear();
+        top = mark;
+    }
+}
@@ -0,0 +1,120 @@
+package edu.sjsu.fwjs;
+
+import java.util.function.Supplier;
+
+/**
+ * A budget of steps for running a script, which can also be cancelled
+ * from another thread.
+ *
+ * A step is one iteration of a while loop or one call of a function,
+ * in every tier (tree walker and compiled functions), since every FWJS
+ * program that runs for long does so in one of them.
+ * At each step the script is charged, and the cancel flag is checked;
+ * once the budget is used up or the Fuel is cancelled, the script stops
+ * with a ScriptStoppedException.
+ *
+ * While no thread runs with Fuel, a step costs a check of one static
+ * volatile flag, which on x86 is an ordinary load.  Only one thread at
+ * a time may run with the same Fuel.
+ */
+public final class Fuel {
+    // Whether any thread is running with Fuel; checked at every step.
+    // Volatile, so that code compiled while it was false cannot keep
+    // the old value once a thread starts running with Fuel.
+    static volatile boolean enabled;
+    private static int active;
+    private static final ThreadLocal<Fuel> current = new ThreadLocal<Fuel>();
+
+    private final long budget;
+    // Steps left; only touched by the thread running with this Fuel.
+    private long remaining;
+    private volatile boolean cancelled;
+
+    /**
+     * Fuel for the given number of steps.
+     */
+    public Fuel(long budget) {
+        if (budget < 0) throw new IllegalArgumentException("Negative budget " + budget);
+        this.budget = budget;
+        this.remaining = budget;
+    }
+
+    /**
+     * Fuel that never runs out, but can still be cancelled.
+     */
+    public static Fuel unlimited() {
+        return new Fuel(Long.MAX_VALUE);
+    }
+
+    /**
+     * Stops the script running with this Fuel at its next step.
+     * Can be called from any thread, before or during the run.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Steps taken so far.
+     */
+    public long getUsed() {
+        return budget - Math.max(remaining, 0);
+    }
+
+    /**
+     * Runs the task on the current thread, charging its steps to this Fuel.
+     */
+    public <T> T run(Supplier<T> task) {
+        Fuel outer = current.get();
+        current.set(this);
+        enter();
+        try {
+            return task.get();
+        } finally {
+            exit();
+            if (outer == null) current.remove();
+            else current.set(outer);
+        }
+    }
+
+    private static synchronized void enter() {
+        active++;
+        enabled = true;
+    }
+
+    private static synchronized void exit() {
+        if (--active == 0) enabled = false;
+    }
+
+    /**
+     * The Fuel of the current thread, or null if it runs without.
+     */
+    static Fuel current() {
+        return current.get();
+    }
+
+    /**
+     * Charges one step to the current thread's Fuel, if it has any.
+     * For callers that cannot keep the Fuel around themselves.
+     */
+    static void step() {
+        Fuel fuel = current.get();
+        if (fuel != null) fuel.charge();
+    }
+
+    /**
+     * Charges one step.
+     */
+    void charge() {
+        if (--remaining < 0 || cancelled)
+            throw new ScriptStoppedException(cancelled, getUsed());
+    }
+}
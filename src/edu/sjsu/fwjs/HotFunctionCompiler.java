@@ -0,0 +1,604 @@
+package edu.sjsu.fwjs;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tier-up compiler for the tree walker.
+ * A function body that has been called threshold times is compiled to a
+ * JVM method, loaded as a hidden class, and used for every later call,
+ * so HotSpot can optimize the FWJS function like any other Java code.
+ *
+ * Arithmetic, comparisons and control flow are compiled to plain int
+ * bytecode, and locals of the function's own frame are read straight from
+ * its slot array.  Captured variables and globals are read from their
+ * slots too, and a call of a function that is compiled as well runs the
+ * callee's compiled body from the call site.  Everything else calls back
+ * into the expression tree, so the compiled code keeps the exact
+ * semantics of the interpreter.
+ *
+ * Hidden classes are not tied to their class loader, so the compiled code
+ * is unloaded once the function's FunctionDeclExpr is no longer reachable.
+ */
+final class HotFunctionCompiler {
+    static final int DEFAULT_THRESHOLD = 1000;
+    // Calls before a body is compiled; 0 keeps every function interpreted.
+    private static int threshold;
+
+    private static final String VALUE = "edu/sjsu/fwjs/Value";
+    private static final String RUNTIME = "edu/sjsu/fwjs/JitRuntime";
+    private static final String V = "L" + VALUE + ";";
+    private static final String ENV = "Ledu/sjsu/fwjs/Environment;";
+    private static final String EXPR = "Ledu/sjsu/fwjs/Expression;";
+    private static final String COMPILED = "edu/sjsu/fwjs/CompiledBody";
+    private static final String BODY = "L" + COMPILED + ";";
+    // Longest method we generate; keeps every branch offset within 16 bits.
+    private static final int MAX_CODE = 30000;
+
+    private final FunctionDeclExpr decl;
+    private final ClassFileWriter cf;
+    private final ClassFileWriter.MethodCode c = new ClassFileWriter.MethodCode(4);
+    private final List<Object> constants = new ArrayList<Object>();
+    // Locals for temporaries that are no longer in use.
+    private final List<Integer> freeLocals = new ArrayList<Integer>();
+    private final boolean hasLocals;
+
+    static void setThreshold(int calls) {
+        threshold = calls;
+    }
+
+    static int getThreshold() {
+        return threshold;
+    }
+
+    private HotFunctionCompiler(FunctionDeclExpr decl) {
+        this.decl = decl;
+        this.hasLocals = decl.getScope() != null;
+        this.cf = new ClassFileWriter("edu/sjsu/fwjs/CompiledFunction", COMPILED);
+    }
+
+    /**
+     * Compiles the body of the function, or returns null if it cannot be compiled.
+     * The function stays interpreted in that case.
+     */
+    static CompiledBody compile(FunctionDeclExpr decl) {
+        try {
+            return new HotFunctionCompiler(decl).compile();
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    private CompiledBody compile() throws Exception {
+        ClassFileWriter.MethodCode init = new ClassFileWriter.MethodCode(1);
+        init.op(0x2a, 1); // aload_0
+        init.op2(0xb7, cf.methodRef(COMPILED, "<init>", "()V"), -1);
+        init.op(0xb1, 0); // return
+        cf.addMethod("<init>", "()V", init);
+
+        if (hasLocals) {
+            c.op(0x2b, 1); // aload_1
+            invokevirtual("edu/sjsu/fwjs/Environment", "getSlots", "()[" + V, 0, true);
+            c.op(0x4e, -1); // astore_3
+        }
+        genValue(decl.getBody());
+        c.op(0xb0, -1); // areturn
+        if (c.length() > MAX_CODE) return null;
+        cf.addMethod("run", "(" + ENV + "[Ljava/lang/Object;)" + V, c);
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(cf.toByteArray(), true);
+        CompiledBody body = (CompiledBody) lookup.lookupClass()
+                .getDeclaredConstructor().newInstance();
+        body.setConstants(constants.toArray());
+        return body;
+    }
+
+    /**
+     * Leaves the value of the expression on the stack.
+     */
+    private void genValue(Expression e) {
+        if (e == null) {
+            invokestatic("nullValue", "()" + V, 0, true);
+        } else if (e instanceof ValueExpr) {
+            pushConstant(((ValueExpr) e).getValue(), VALUE);
+        } else if (e instanceof VarExpr) {
+            genVar((VarExpr) e);
+        } else if (e instanceof BinOpExpr) {
+            if (isArithmetic(((BinOpExpr) e).getOp())) {
+                genInt(e);
+                invokestatic("box", "(I)" + V, 1, true);
+            } else {
+                genBoolean(e);
+                invokestatic("box", "(Z)" + V, 1, true);
+            }
+        } else if (e instanceof IfExpr) {
+            IfExpr ife = (IfExpr) e;
+            ClassFileWriter.Label els = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            genCondition(ife.getCond(), els);
+            genValue(ife.getThen());
+            c.jump(0xa7, end, 0); // goto
+            c.place(els, false);
+            if (ife.getElse() != null)
+                genValue(ife.getElse());
+            else
+                invokestatic("nullValue", "()" + V, 0, true);
+            c.place(end, true);
+        } else if (e instanceof WhileExpr) {
+            WhileExpr we = (WhileExpr) e;
+            ClassFileWriter.Label loop = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            // The value of the last iteration is kept in a local rather than on
+            // the stack, so that HotSpot can enter the loop by OSR.
+            int result = newLocal();
+            invokestatic("nullValue", "()" + V, 0, true);
+            store(result);
+            c.place(loop, true);
+            genCondition(we.getCond(), end);
+            if (Metrics.ENABLED)
+                invokestatic("loopIteration", "()V", 0, false);
+            invokestatic("backEdge", "()V", 0, false);
+            genValue(we.getBody());
+            store(result);
+            c.jump(0xa7, loop, 0); // goto
+            c.place(end, false);
+            load(result);
+            freeLocal(result);
+        } else if (e instanceof SeqExpr) {
+            genValue(((SeqExpr) e).getFirst());
+            c.op(0x57, -1); // pop
+            genValue(((SeqExpr) e).getSecond());
+        } else if (e instanceof AssignExpr) {
+            genAssign((AssignExpr) e);
+        } else if (e instanceof VarDeclExpr) {
+            VarDeclExpr vd = (VarDeclExpr) e;
+            pushConstant(vd, "edu/sjsu/fwjs/VarDeclExpr");
+            c.op(0x2b, 1); // aload_1
+            genValue(vd.getExp());
+            invokevirtual("edu/sjsu/fwjs/VarDeclExpr", "declare", "(" + ENV + V + ")" + V, 2, true);
+        } else if (e instanceof PrintExpr) {
+            genValue(((PrintExpr) e).getExp());
+            c.op(0x2b, 1); // aload_1
+            invokestatic("print", "(" + V + ENV + ")" + V, 2, true);
+        } else if (e instanceof FunctionAppExpr) {
+            genCall((FunctionAppExpr) e);
+        } else {
+            // Anything else (e.g. nested function declarations) runs in the tree walker,
+            // called on its own class so that HotSpot can inline it here.
+            String type = e.getClass().getName().replace('.', '/');
+            pushConstant(e, type);
+            c.op(0x2b, 1); // aload_1
+            invokevirtual(type, "evaluate", "(" + ENV + ")" + V, 1, true);
+        }
+    }
+
+    private void genCall(FunctionAppExpr app) {
+        List<Expression> args = app.getArgs();
+        if (app.isTail()) {
+            // A tail call may reuse our frame, so it gets the frame too.
+            c.op(0x2b, 1); // aload_1
+            genValue(app.getFunction());
+            genArgs(args);
+            invokestatic("tailCall", "(" + ENV + V + argsDescriptor(args.size()) + ")" + V,
+                    1 + 1 + argsSize(args.size()), true);
+            return;
+        }
+        // The callee's frame is set up here.  If the callee is compiled, its
+        // body is run from here too, so that each call site has a profile of
+        // its own and HotSpot can inline the callee into it.
+        int f = newLocal();
+        int frame = newLocal();
+        int body = newLocal();
+        genValue(app.getFunction());
+        c.op(0x59, 1); // dup
+        store(f);
+        genArgs(args);
+        invokestatic("frame", "(" + V + argsDescriptor(args.size()) + ")" + ENV,
+                1 + argsSize(args.size()), true);
+        store(frame);
+        load(f);
+        invokestatic("direct", "(" + V + ")" + BODY, 1, true);
+        c.op(0x59, 1); // dup
+        store(body);
+        ClassFileWriter.Label slow = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        c.jump(0xc6, slow, -1); // ifnull
+        load(body);
+        load(frame);
+        load(body);
+        c.op2(0xb6, cf.methodRef(COMPILED, "getConstants", "()[Ljava/lang/Object;"), 0);
+        c.op2(0xb6, cf.methodRef(COMPILED, "run", "(" + ENV + "[Ljava/lang/Object;)" + V), -2);
+        invokestatic("complete", "(" + V + ")" + V, 1, true);
+        c.jump(0xa7, end, 0); // goto
+        c.place(slow, false);
+        load(f);
+        load(frame);
+        invokestatic("invoke", "(" + V + ENV + ")" + V, 2, true);
+        c.place(end, true);
+        freeLocal(body);
+        freeLocal(frame);
+        freeLocal(f);
+    }
+
+    /**
+     * Leaves the arguments of a call on the stack: each on its own for
+     * fixed-arity calls, else in an array.
+     */
+    private void genArgs(List<Expression> args) {
+        if (args.size() <= JitRuntime.MAX_FIXED_ARITY) {
+            for (Expression arg : args)
+                genValue(arg);
+            return;
+        }
+        pushInt(args.size());
+        c.op2(0xbd, cf.classRef(VALUE), 0); // anewarray
+        for (int i = 0; i < args.size(); i++) {
+            c.op(0x59, 1); // dup
+            pushInt(i);
+            genValue(args.get(i));
+            c.op(0x53, -3); // aastore
+        }
+    }
+
+    private static String argsDescriptor(int n) {
+        return n <= JitRuntime.MAX_FIXED_ARITY ? V.repeat(n) : "[" + V;
+    }
+
+    private static int argsSize(int n) {
+        return n <= JitRuntime.MAX_FIXED_ARITY ? n : 1;
+    }
+
+    private void genVar(VarExpr e) {
+        if (isLocal(e.getScope(), e.getDepth(), e.getSlot())) {
+            // The slot of our own frame; VarExpr.evaluate handles an empty slot.
+            pushConstant(e, "edu/sjsu/fwjs/Expression");
+            c.op(0x2b, 1); // aload_1
+            c.op(0x2d, 1); // aload_3
+            pushInt(e.getSlot());
+            c.op(0x32, -1); // aaload
+            invokestatic("local", "(" + EXPR + ENV + V + ")" + V, 3, true);
+        } else if (e.getScope() != null) {
+            // A captured variable, a global, or a Cell of our own frame:
+            // read its slot, and only ask the tree if it is not there.
+            ClassFileWriter.Label found = new ClassFileWriter.Label();
+            c.op(0x2b, 1); // aload_1
+            pushInt(e.getDepth());
+            pushConstant(e.getScope(), "edu/sjsu/fwjs/Scope");
+            pushInt(e.getSlot());
+            invokevirtual("edu/sjsu/fwjs/Environment", "getSlot",
+                    "(ILedu/sjsu/fwjs/Scope;I)" + V, 3, true);
+            c.op(0x59, 1); // dup
+            c.jump(0xc7, found, -1); // ifnonnull
+            c.op(0x57, -1); // pop
+            pushConstant(e, "edu/sjsu/fwjs/VarExpr");
+            c.op(0x2b, 1); // aload_1
+            invokevirtual("edu/sjsu/fwjs/VarExpr", "evaluate", "(" + ENV + ")" + V, 1, true);
+            c.place(found, true);
+        } else {
+            pushConstant(e, "edu/sjsu/fwjs/VarExpr");
+            c.op(0x2b, 1); // aload_1
+            invokevirtual("edu/sjsu/fwjs/VarExpr", "evaluate", "(" + ENV + ")" + V, 1, true);
+        }
+    }
+
+    private void genAssign(AssignExpr e) {
+        pushConstant(e, "edu/sjsu/fwjs/AssignExpr");
+        c.op(0x2b, 1); // aload_1
+        genValue(e.getExp());
+        if (isLocal(e.getScope(), e.getDepth(), e.getSlot())) {
+            c.op(0x2d, 1); // aload_3
+            pushInt(e.getSlot());
+            invokestatic("storeLocal", "(Ledu/sjsu/fwjs/AssignExpr;" + ENV + V + "[" + V + "I)" + V, 5, true);
+        } else {
+            invokevirtual("edu/sjsu/fwjs/AssignExpr", "assign", "(" + ENV + V + ")" + V, 2, true);
+        }
+    }
+
+    /**
+     * Leaves the int value of the expression on the stack.
+     */
+    private void genInt(Expression e) {
+        if (e instanceof ValueExpr && ((ValueExpr) e).getValue() instanceof IntVal) {
+            pushInt(((IntVal) ((ValueExpr) e).getValue()).toInt());
+        } else if (e instanceof BinOpExpr && isArithmetic(((BinOpExpr) e).getOp())) {
+            BinOpExpr b = (BinOpExpr) e;
+            genInt(b.getLeft());
+            genInt(b.getRight());
+            switch (b.getOp()) {
+            case ADD:		c.op(0x60, -1); break;
+            case SUBTRACT:	c.op(0x64, -1); break;
+            case MULTIPLY:	c.op(0x68, -1); break;
+            case DIVIDE:	c.op(0x6c, -1); break;
+            default:		c.op(0x70, -1); break;
+            }
+        } else {
+            genValue(e);
+            invokestatic("toInt", "(" + V + ")I", 1, true);
+        }
+    }
+
+    /**
+     * Leaves the boolean value of the expression on the stack, as an int.
+     */
+    private void genBoolean(Expression e) {
+        ClassFileWriter.Label no = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        genCondition(e, no);
+        c.op(0x04, 1); // iconst_1
+        c.jump(0xa7, end, 0); // goto
+        c.place(no, false);
+        c.op(0x03, 1); // iconst_0
+        c.place(end, true);
+    }
+
+    /**
+     * Jumps to the label if the condition is false.
+     */
+    private void genCondition(Expression e, ClassFileWriter.Label ifFalse) {
+        if (e instanceof BinOpExpr && !isArithmetic(((BinOpExpr) e).getOp())) {
+            BinOpExpr b = (BinOpExpr) e;
+            if (b.getOp() != Op.EQ || (isInt(b.getLeft()) && isInt(b.getRight()))) {
+                genInt(b.getLeft());
+                genInt(b.getRight());
+                switch (b.getOp()) {
+                case GT:		c.jump(0xa4, ifFalse, -2); break; // if_icmple
+                case GE:		c.jump(0xa1, ifFalse, -2); break; // if_icmplt
+                case LT:		c.jump(0xa2, ifFalse, -2); break; // if_icmpge
+                case LE:		c.jump(0xa3, ifFalse, -2); break; // if_icmpgt
+                default:		c.jump(0xa0, ifFalse, -2); break; // if_icmpne
+                }
+                return;
+            }
+            genValue(b.getLeft());
+            genValue(b.getRight());
+            invokestatic("equal", "(" + V + V + ")Z", 2, true);
+        } else {
+            genValue(e);
+            invokestatic("toBoolean", "(" + V + ")Z", 1, true);
+        }
+        c.jump(0x99, ifFalse, -1); // ifeq
+    }
+
+    private boolean isLocal(Scope scope, int depth, int slot) {
+        return hasLocals && scope == decl.getScope() && depth == 0 && !scope.isCell(slot);
+    }
+
+    private static boolean isArithmetic(Op op) {
+        return op == Op.ADD || op == Op.SUBTRACT || op == Op.MULTIPLY
+                || op == Op.DIVIDE || op == Op.MOD;
+    }
+
+    /**
+     * Whether the expression always produces an int (or fails).
+     */
+    private static boolean isInt(Expression e) {
+        if (e instanceof ValueExpr) return ((ValueExpr) e).getValue() instanceof IntVal;
+        return e instanceof BinOpExpr && isArithmetic(((BinOpExpr) e).getOp());
+    }
+
+    private void pushConstant(Object value, String type) {
+        int i = 0;
+        while (i < constants.size() && constants.get(i) != value) i++;
+        if (i == constants.size()) constants.add(value);
+        c.op(0x2c, 1); // aload_2
+        pushInt(i);
+        c.op(0x32, -1); // aaload
+        c.op2(0xc0, cf.classRef(type), 0); // checkcast
+    }
+
+    private void pushInt(int i) {
+        if (i >= -1 && i <= 5)
+            c.op(0x03 + i, 1); // iconst_<i>
+        else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE)
+            c.op1(0x10, i & 0xff, 1); // bipush
+        else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE)
+            c.op2(0x11, i & 0xffff, 1); // sipush
+        else
+            c.op2(0x13, cf.integer(i), 1); // ldc_w
+    }
+
+    private int newLocal() {
+        return freeLocals.isEmpty() ? c.newLocal() : freeLocals.remove(freeLocals.size() - 1);
+    }
+
+    private void freeLocal(int local) {
+        freeLocals.add(local);
+    }
+
+    private void load(int local) {
+        c.op1(0x19, checkLocal(local), 1); // aload
+    }
+
+    private void store(int local) {
+        c.op1(0x3a, checkLocal(local), -1); // astore
+    }
+
+    private static int checkLocal(int local) {
+        // Without the wide prefix, a local is addressed by one byte.
+        if (local > 0xff) throw new IllegalStateException("Too many locals");
+        return local;
+    }
+
+    private void invokestatic(String name, String descriptor, int args, boolean returns) {
+        c.op2(0xb8, cf.methodRef(RUNTIME, name, descriptor), (returns ? 1 : 0) - args);
+    }
+
+    private void invokevirtual(String owner, String name, String descriptor, int args, boolean returns) {
+        c.op2(0xb6, cf.methodRef(owner, name, descriptor), (returns ? 1 : 0) - args - 1);
+    }
+}
+
+/**
+ * Base class of the hidden classes made by the HotFunctionCompiler.
+ */
+abstract class CompiledBody {
+    private Object[] constants;
+
+    void setConstants(Object[] constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * Runs the compiled body in the new frame of a call.
+     */
+    final Value invoke(Environment frame) {
+        return run(frame, constants);
+    }
+
+    public final Object[] getConstants() {
+        return constants;
+    }
+
+    public abstract Value run(Environment env, Object[] k);
+}
+
+/**
+ * Helpers called from compiled code.
+ * They are small enough for HotSpot to inline into the caller.
+ */
+final class JitRuntime {
+    // Calls with more arguments pass them in an array.
+    static final int MAX_FIXED_ARITY = 4;
+
+    private JitRuntime() {}
+
+    static Value local(Expression e, Environment env, Value v) {
+        return v != null ? v : e.evaluate(env);
+    }
+
+    static Value storeLocal(AssignExpr e, Environment env, Value v, Value[] locals, int slot) {
+        if (locals[slot] == null) return e.assign(env, v);
+        locals[slot] = v;
+        return v;
+    }
+
+    static Value nullValue() {
+        return new NullVal();
+    }
+
+    static Value box(int i) {
+        return new IntVal(i);
+    }
+
+    static Value box(boolean b) {
+        return BoolVal.valueOf(b);
+    }
+
+    // Compiled code does not deoptimize, so a value of the wrong type
+    // is a type error here.
+    static int toInt(Value v) {
+        if (v instanceof IntVal) return ((IntVal) v).toInt();
+        throw UnexpectedResultException.castError(v, IntVal.class);
+    }
+
+    static boolean toBoolean(Value v) {
+        if (v instanceof BoolVal) return ((BoolVal) v).toBoolean();
+        throw UnexpectedResultException.castError(v, BoolVal.class);
+    }
+
+    static boolean equal(Value v1, Value v2) {
+        return ((BoolVal) GenericBinOpNode.apply(Op.EQ, v1, v2)).toBoolean();
+    }
+
+    static Value print(Value v, Environment env) {
+        env.getOutput().print(v);
+        return v;
+    }
+
+    static void backEdge() {
+        if (Fuel.enabled) Fuel.step();
+    }
+
+    static void loopIteration() {
+        Metrics.loopIterations.increment();
+    }
+
+    // The frame for a call of f, with the arguments bound.
+    static Environment frame(Value f) {
+        return ((ClosureVal) f).newFrame();
+    }
+
+    static Environment frame(Value f, Value a) {
+        return ((ClosureVal) f).newFrame(a);
+    }
+
+    static Environment frame(Value f, Value a, Value b) {
+        return ((ClosureVal) f).newFrame(a, b);
+    }
+
+    static Environment frame(Value f, Value a, Value b, Value c) {
+        return ((ClosureVal) f).newFrame(a, b, c);
+    }
+
+    static Environment frame(Value f, Value a, Value b, Value c, Value d) {
+        return ((ClosureVal) f).newFrame(a, b, c, d);
+    }
+
+    static Environment frame(Value f, Value[] args) {
+        return ((ClosureVal) f).newFrame(args);
+    }
+
+    /**
+     * The compiled body of f, for compiled code to run a call of f itself,
+     * with the call counted and profiled as ClosureVal.invoke would.  Null
+     * if the call has to go through invoke, because f is not compiled yet.
+     */
+    static CompiledBody direct(Value f) {
+        CompiledBody body = ((ClosureVal) f).getCompiled();
+        if (body == null) return null;
+        if (Metrics.ENABLED) Metrics.calls.increment();
+        if (Fuel.enabled) Fuel.step();
+        if (Profiler.enabled) Profiler.track().enter(((ClosureVal) f).getDecl());
+        return body;
+    }
+
+    /**
+     * The value of a call whose body was run directly, once the tail call
+     * it may have returned has run.  Compiled code makes tail calls with
+     * tailCall, whose frames are never pooled.
+     */
+    static Value complete(Value result) {
+        // If the call ended with an exception instead, the invoke it was
+        // made from puts the profiler's frame back.
+        if (Profiler.enabled) Profiler.track().exit();
+        if (!(result instanceof TailCall)) return result;
+        TailCall call = (TailCall) result;
+        return call.closure.invoke(call.frame);
+    }
+
+    static Value invoke(Value f, Environment frame) {
+        return ((ClosureVal) f).invoke(frame);
+    }
+
+    static Value tailCall(Environment env, Value f) {
+        ClosureVal closure = (ClosureVal) f;
+        return new TailCall(closure, closure.tailFrame(env));
+    }
+
+    static Value tailCall(Environment env, Value f, Value a) {
+        ClosureVal closure = (ClosureVal) f;
+        return new TailCall(closure, closure.tailFrame(env, a));
+    }
+
+    static Value tailCall(Environment env, Value f, Value a, Value b) {
+        ClosureVal closure = (ClosureVal) f;
+        return new TailCall(closure, closure.tailFrame(env, a, b));
+    }
+
+    static Value tailCall(Environment env, Value f, Value a, Value b, Value c) {
+        ClosureVal closure = (ClosureVal) f;
+        return new TailCall(closure, closure.tailFrame(env, a, b, c));
+    }
+
+    static Value tailCall(Environment env, Value f, Value a, Value b, Value c, Value d) {
+        ClosureVal closure = (ClosureVal) f;
+        return new TailCall(closure, closure.tailFrame(env, a, b, c, d));
+    }
+
+    static Value tailCall(Environment env, Value f, Value[] args) {
+        ClosureVal closure = (ClosureVal) f;
+        return new TailCall(closure, closure.tailFrame(env, args));
+    }
+}
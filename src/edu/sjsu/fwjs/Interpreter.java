@@ -1,31 +1,282 @@
 package edu.sjsu.fwjs;
 
-import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.ParseTree;
-
-import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
-import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+import org.antlr.v4.runtime.CharStream;
 
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
 
 public class Interpreter {
+    private static boolean metricsReported;
 
     public static void main(String[] args) throws Exception {
+        if (Metrics.ENABLED)
+            reportMetrics();
+        List<String> rest = new ArrayList<String>();
+        String profile = null;
+        for (String arg : args) {
+            if (arg.equals("-profile") || arg.startsWith("-profile=")) profile = arg;
+            else rest.add(arg);
+        }
+        if (profile != null) {
+            runProfiled(rest.toArray(new String[0]),
+                    profile.startsWith("-profile=") ? profile.substring("-profile=".length()) : null);
+            return;
+        }
+
         String inputFile = null;
-        if (args.length>0) inputFile = args[0];
-        InputStream is = System.in;
-        if (inputFile!=null) is = new FileInputStream(inputFile);
-
-        ANTLRInputStream input = new ANTLRInputStream(is);
-        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        FeatherweightJavaScriptParser parser = new FeatherweightJavaScriptParser(tokens);
-        ParseTree tree = parser.prog(); // parse
-
-        ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
-        Expression prog = builder.visit(tree);
-        prog.evaluate(new Environment());
+        boolean optimize = false;
+        boolean useCache = false;
+        boolean twoStage = false;
+        boolean stream = false;
+        boolean batch = false;
+        String prelude = null;
+        String snapshot = null;
+        Fuel fuel = null;
+        String output = null;
+        List<String> files = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("-O")) optimize = true;
+            else if (arg.equals("-cache")) useCache = true;
+            else if (arg.equals("-sll")) twoStage = true;
+            else if (arg.equals("-stream")) stream = true;
+            else if (arg.equals("-batch")) batch = true;
+            else if (arg.startsWith("-prelude=")) prelude = arg.substring("-prelude=".length());
+            else if (arg.startsWith("-snapshot=")) snapshot = arg.substring("-snapshot=".length());
+            else if (arg.startsWith("-fuel=")) fuel = new Fuel(Long.parseLong(arg.substring("-fuel=".length())));
+            else if (arg.startsWith("-out=")) output = arg.substring("-out=".length());
+            else if (arg.equals("-jit"))
+                HotFunctionCompiler.setThreshold(Integer.getInteger("fwjs.jit.threshold",
+                        HotFunctionCompiler.DEFAULT_THRESHOLD));
+            else {
+                inputFile = arg;
+                files.add(arg);
+            }
+        }
+        Environment preludeEnv = prelude == null ? null : loadPrelude(prelude, snapshot, optimize);
+        if (batch) {
+            runBatch(files, preludeEnv, optimize, fuel == null ? -1 : fuel.getBudget());
+            return;
+        }
+        if (stream) {
+            OutputSink sink = openOutput(output);
+            try {
+                runStream(inputFile != null ? new FileInputStream(inputFile) : System.in,
+                        optimize, fuel, sink);
+            } finally {
+                closeOutput(sink, output);
+            }
+            return;
+        }
+
+        // A file is mapped and lexed in place; stdin has to be read first.
+        ByteBuffer source = inputFile != null
+                ? MappedCharStream.map(Paths.get(inputFile))
+                : ByteBuffer.wrap(System.in.readAllBytes());
+        ScriptCache cache = null;
+        Expression prog = null;
+        if (useCache) {
+            cache = new ScriptCache(Paths.get(System.getProperty("fwjs.cache.dir",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "fwjs-cache").toString())));
+            prog = cache.load(source, optimize);
+        }
+        if (prog == null) {
+            prog = build(new MappedCharStream(source, inputFile), twoStage);
+            if (optimize)
+                prog = new Optimizer().optimize(prog);
+            if (cache != null)
+                cache.store(source, optimize, prog);
+        }
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Environment globals = preludeEnv == null
+                ? resolver.newGlobalEnvironment()
+                : resolver.newGlobalEnvironment(preludeEnv);
+        OutputSink sink = openOutput(output);
+        globals.setOutput(sink);
+        try {
+            Expression tree = prog;
+            run(fuel, sink, () -> tree.evaluate(globals));
+        } finally {
+            closeOutput(sink, output);
+            if (Metrics.ENABLED)
+                Metrics.writeCallSites(prog, System.err);
+        }
+    }
+
+    /**
+     * A buffered sink for print: the file given by -out=FILE, or stdout.
+     * -Dfwjs.output.flush=BYTES writes the buffer out whenever it holds
+     * that many bytes, and -Dfwjs.output.delay=MS when its oldest line is
+     * that old; otherwise it is written out when full and at the end.
+     */
+    private static OutputSink openOutput(String file) throws IOException {
+        OutputSink sink = file != null
+                ? OutputSink.open(Paths.get(file))
+                : new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel());
+        Integer size = Integer.getInteger("fwjs.output.flush");
+        if (size != null)
+            sink.setFlushSize(size);
+        sink.setFlushDelay(Long.getLong("fwjs.output.delay", -1));
+        return sink;
+    }
+
+    private static void closeOutput(OutputSink sink, String file) {
+        // Leave stdout open for whatever else is printed before exit.
+        if (file != null)
+            sink.close();
+        else
+            sink.flush();
+    }
+
+    /**
+     * Runs the task, printing to the sink, with -fuel=N charged to the given Fuel.
+     */
+    private static Value run(Fuel fuel, OutputSink sink, Supplier<Value> task) {
+        Supplier<Value> printing = () -> sink.run(task);
+        return fuel == null ? printing.get() : fuel.run(printing);
+    }
+
+    /**
+     * Runs the interpreter with the Profiler on, then prints a table of
+     * the hottest FWJS functions to stderr.  If a file is given, the
+     * samples are also written there in collapsed-stack format, for
+     * flame graph tools.  -Dfwjs.profile.interval sets the sampling
+     * interval in microseconds.
+     */
+    private static void runProfiled(String[] args, String collapsedFile) throws Exception {
+        Profiler profiler = new Profiler(Long.getLong("fwjs.profile.interval",
+                Profiler.DEFAULT_INTERVAL_MICROS));
+        profiler.start();
+        try {
+            main(args);
+        } finally {
+            profiler.stop();
+            profiler.writeTable(System.err);
+            if (collapsedFile != null) {
+                try (PrintStream out = new PrintStream(collapsedFile, "UTF-8")) {
+                    profiler.writeCollapsed(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * With -Dfwjs.metrics=true, makes the counters of the run available
+     * over JMX while it lasts, and prints them to stderr when it ends.
+     */
+    private static synchronized void reportMetrics() {
+        if (metricsReported) return;
+        metricsReported = true;
+        Metrics.register();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> Metrics.write(System.err)));
+    }
+
+    /**
+     * Runs the prelude file and freezes the globals it defines.
+     * With -snapshot=FILE, those globals are restored from the snapshot
+     * if it was made from the same prelude, and saved to it otherwise.
+     */
+    private static Environment loadPrelude(String file, String snapshotFile, boolean optimize)
+            throws IOException {
+        ByteBuffer source = MappedCharStream.map(Paths.get(file));
+        Snapshot snapshot = snapshotFile == null ? null : new Snapshot(Paths.get(snapshotFile));
+        if (snapshot != null) {
+            Environment globals = snapshot.load(source, optimize);
+            if (globals != null) return globals;
+        }
+        Expression prog = build(new MappedCharStream(source, file), false);
+        if (optimize)
+            prog = new Optimizer().optimize(prog);
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Environment globals = resolver.newGlobalEnvironment();
+        prog.evaluate(globals);
+        globals.freeze();
+        if (snapshot != null)
+            snapshot.store(source, optimize, prog, globals);
+        return globals;
+    }
+
+    /**
+     * Runs the input statement by statement, as it is read.
+     * Every statement is resolved against the same globals and
+     * evaluated before the next one is parsed.
+     */
+    private static void runStream(InputStream is, boolean optimize, Fuel fuel, OutputSink sink) {
+        StatementStream stats = new StatementStream(new InputStreamReader(is));
+        Optimizer optimizer = new Optimizer();
+        Resolver resolver = new Resolver();
+        Environment globals = resolver.newGlobalEnvironment();
+        globals.setOutput(sink);
+        for (Expression stat = stats.next(); stat != null; stat = stats.next()) {
+            if (optimize)
+                stat = optimizer.optimize(stat);
+            resolver.resolve(stat);
+            Expression tree = stat;
+            run(fuel, sink, () -> tree.evaluate(globals));
+            // Show the output of each statement before reading the next.
+            sink.flush();
+        }
+    }
+
+    /**
+     * Runs every file as a separate job, all at the same time.
+     * Each job's output is printed in the order the files were given,
+     * followed by a throughput and latency report on stderr.
+     * -Dfwjs.batch.repeat=N runs the whole list N times.
+     * With -prelude=FILE, every job starts from the globals of the prelude.
+     * With -fuel=N, every job gets a budget of N steps.
+     */
+    private static void runBatch(List<String> files, Environment prelude, boolean optimize,
+            long budget) throws Exception {
+        List<String> sources = new ArrayList<String>();
+        int repeat = Integer.getInteger("fwjs.batch.repeat", 1);
+        for (int i = 0; i < repeat; i++)
+            for (String file : files)
+                sources.add(readFile(file));
+        ScriptEngine engine = new ScriptEngine(ScriptEngine.DEFAULT_CACHE_SIZE, optimize);
+        List<ScriptExecutor.Result> results = new ArrayList<ScriptExecutor.Result>();
+        ScriptExecutor.Report report;
+        try (ScriptExecutor executor = new ScriptExecutor(engine, prelude)) {
+            executor.setBudget(budget);
+            report = executor.runBatch(sources, results);
+        }
+        for (int i = 0; i < results.size(); i++) {
+            ScriptExecutor.Result result = results.get(i);
+            System.out.print(result.getOutput());
+            if (result.getError() != null)
+                System.err.println(files.get(i % files.size()) + ": " + result.getError());
+        }
+        System.err.println(report);
+    }
+
+    private static String readFile(String file) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the source.  A tree with syntax errors has holes in it, which
+     * each engine would treat differently, so it is never run.
+     */
+    private static Expression build(CharStream source, boolean twoStage) {
+        ScriptParser parser = new ScriptParser();
+        parser.setTwoStage(twoStage);
+        Expression prog = parser.parse(source);
+        if (parser.getSyntaxErrors() > 0)
+            throw new IllegalArgumentException("Syntax errors in " + source.getSourceName());
+        return prog;
     }
 
 }
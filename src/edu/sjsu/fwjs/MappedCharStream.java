@@ -0,0 +1,184 @@
+package edu.sjsu.fwjs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * A CharStream that reads UTF-8 source straight out of a ByteBuffer,
+ * normally a file mapped into memory, instead of copying it into a char[]
+ * the way ANTLRInputStream does.
+ *
+ * Indexes count code points, as in ANTLR's own CharStreams.  For an ASCII
+ * file they are simply byte offsets.  Otherwise the byte offset of every
+ * 64th code point is kept, and an index is found by decoding forward from
+ * the nearest one; the lexer mostly moves one code point at a time, and
+ * that case is decoded directly.  Malformed UTF-8 reads as U+FFFD.
+ */
+public class MappedCharStream implements CharStream {
+    private static final int CHECKPOINT_SHIFT = 6;
+
+    private final ByteBuffer buf;
+    private final String name;
+    private final int limit;
+    private final int size;
+    // Byte offset of every 64th code point; null for ASCII input.
+    private final int[] checkpoints;
+    // Current code point, and its byte offset.
+    private int index;
+    private int pos;
+
+    public MappedCharStream(ByteBuffer buf, String name) {
+        this.buf = buf.slice();
+        this.name = name;
+        this.limit = this.buf.limit();
+        boolean ascii = true;
+        for (int p = 0; p < limit && ascii; p++)
+            ascii = this.buf.get(p) >= 0;
+        if (ascii) {
+            size = limit;
+            checkpoints = null;
+        } else {
+            int[] marks = new int[(limit >> CHECKPOINT_SHIFT) + 1];
+            int n = 0;
+            for (int p = 0; p < limit; p += length(p), n++)
+                if ((n & ((1 << CHECKPOINT_SHIFT) - 1)) == 0)
+                    marks[n >> CHECKPOINT_SHIFT] = p;
+            size = n;
+            checkpoints = marks;
+        }
+    }
+
+    /**
+     * Maps the whole file read-only.  The mapping outlives the channel.
+     */
+    public static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public static MappedCharStream open(Path file) throws IOException {
+        return new MappedCharStream(map(file), file.toString());
+    }
+
+    @Override
+    public void consume() {
+        if (index >= size)
+            throw new IllegalStateException("cannot consume EOF");
+        pos += checkpoints == null ? 1 : length(pos);
+        index++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0) return 0; // undefined
+        int at = i > 0 ? index + i - 1 : index + i;
+        if (at < 0 || at >= size) return IntStream.EOF;
+        if (checkpoints == null) return buf.get(at) & 0xff;
+        return decode(offset(at));
+    }
+
+    /**
+     * The whole input is always available, so marks need no bookkeeping.
+     */
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public void seek(int index) {
+        int at = Math.max(0, Math.min(index, size));
+        pos = offset(at);
+        this.index = at;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getSourceName() {
+        return name == null || name.isEmpty() ? IntStream.UNKNOWN_SOURCE_NAME : name;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = Math.max(0, interval.a);
+        int stop = Math.min(interval.b, size - 1);
+        if (start > stop) return "";
+        ByteBuffer text = buf.duplicate();
+        text.limit(offset(stop + 1)).position(offset(start));
+        if (checkpoints == null)
+            return StandardCharsets.ISO_8859_1.decode(text).toString();
+        return StandardCharsets.UTF_8.decode(text).toString();
+    }
+
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, size - 1));
+    }
+
+    /**
+     * Byte offset of a code point index.
+     */
+    private int offset(int at) {
+        if (checkpoints == null) return at;
+        if (at == index) return pos;
+        if (at == size) return limit;
+        int p;
+        int n;
+        if (at > index && at - index < (1 << CHECKPOINT_SHIFT)) {
+            p = pos;
+            n = index;
+        } else {
+            p = checkpoints[at >> CHECKPOINT_SHIFT];
+            n = at & ~((1 << CHECKPOINT_SHIFT) - 1);
+        }
+        for (; n < at; n++)
+            p += length(p);
+        return p;
+    }
+
+    /**
+     * Length of the code point at byte p: its lead byte and the continuation bytes after it.
+     */
+    private int length(int p) {
+        int len = 1;
+        while (len < 4 && p + len < limit && (buf.get(p + len) & 0xc0) == 0x80)
+            len++;
+        return len;
+    }
+
+    private int decode(int p) {
+        int b = buf.get(p) & 0xff;
+        int len = length(p);
+        int expected = b < 0x80 ? 1 : b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 0;
+        if (len != expected) return 0xfffd;
+        if (len == 1) return b;
+        int c = b & (0xff >> (len + 1));
+        for (int i = 1; i < len; i++)
+            c = (c << 6) | (buf.get(p + i) & 0x3f);
+        return c;
+    }
+}
@@ -0,0 +1,189 @@
+package edu.sjsu.fwjs;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime counters of the interpreter, exposed as an MXBean named
+ * edu.sjsu.fwjs:type=Metrics.
+ *
+ * Counting is turned on for the whole JVM with -Dfwjs.metrics=true.
+ * Every counting site is guarded by ENABLED, which is a static final
+ * field, so with metrics off HotSpot drops the guarded code altogether.
+ * The counters are LongAdders, so threads running scripts at the same
+ * time do not contend on them.
+ *
+ * Lookups are counted for resolveVar, the lookup by name, and for the
+ * slot reads of resolved variables.  The depth histogram has one bucket
+ * per number of scopes walked, up to DEPTH_BUCKETS - 1, where the last
+ * bucket counts all deeper lookups.
+ */
+public final class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("fwjs.metrics");
+    static final int DEPTH_BUCKETS = 17;
+    public static final String OBJECT_NAME = "edu.sjsu.fwjs:type=Metrics";
+
+    static final LongAdder environments = new LongAdder();
+    static final LongAdder framesReused = new LongAdder();
+    static final LongAdder nameLookups = new LongAdder();
+    static final LongAdder slotLookups = new LongAdder();
+    private static final LongAdder[] lookupDepths = new LongAdder[DEPTH_BUCKETS];
+    static final LongAdder intVals = new LongAdder();
+    static final LongAdder boolVals = new LongAdder();
+    static final LongAdder nullVals = new LongAdder();
+    static final LongAdder closures = new LongAdder();
+    static final LongAdder calls = new LongAdder();
+    static final LongAdder loopIterations = new LongAdder();
+    static {
+        for (int i = 0; i < DEPTH_BUCKETS; i++)
+            lookupDepths[i] = new LongAdder();
+    }
+
+    private Metrics() {}
+
+    /**
+     * The attributes of the MXBean.  Every one is a count since the JVM
+     * started, or since the last reset.
+     */
+    public interface CountersMXBean {
+        long getEnvironmentsCreated();
+        /** Calls that ran on a reused frame instead of a new Environment. */
+        long getFramesReused();
+        long getResolveVarCalls();
+        long getSlotLookups();
+        /** Lookups by the number of scopes walked; the last bucket is "or more". */
+        long[] getLookupDepthHistogram();
+        long getIntValsAllocated();
+        long getBoolValsAllocated();
+        long getNullValsAllocated();
+        long getClosuresCreated();
+        long getClosureCalls();
+        long getLoopIterations();
+        boolean isEnabled();
+        void reset();
+    }
+
+    private static final class Counters implements CountersMXBean {
+        public long getEnvironmentsCreated() { return environments.sum(); }
+        public long getFramesReused() { return framesReused.sum(); }
+        public long getResolveVarCalls() { return nameLookups.sum(); }
+        public long getSlotLookups() { return slotLookups.sum(); }
+        public long[] getLookupDepthHistogram() {
+            long[] h = new long[DEPTH_BUCKETS];
+            for (int i = 0; i < DEPTH_BUCKETS; i++)
+                h[i] = lookupDepths[i].sum();
+            return h;
+        }
+        public long getIntValsAllocated() { return intVals.sum(); }
+        public long getBoolValsAllocated() { return boolVals.sum(); }
+        public long getNullValsAllocated() { return nullVals.sum(); }
+        public long getClosuresCreated() { return closures.sum(); }
+        public long getClosureCalls() { return calls.sum(); }
+        public long getLoopIterations() { return loopIterations.sum(); }
+        public boolean isEnabled() { return ENABLED; }
+        public void reset() { Metrics.reset(); }
+    }
+
+    private static final Counters counters = new Counters();
+
+    static CountersMXBean counters() {
+        return counters;
+    }
+
+    /**
+     * Registers the MXBean with the platform MBean server, if it is not
+     * registered yet.
+     */
+    public static synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(counters, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Counts a variable lookup that walked the given number of scopes.
+     */
+    static void lookup(LongAdder kind, int depth) {
+        kind.increment();
+        lookupDepths[Math.min(depth, DEPTH_BUCKETS - 1)].increment();
+    }
+
+    static void reset() {
+        environments.reset();
+        framesReused.reset();
+        nameLookups.reset();
+        slotLookups.reset();
+        for (LongAdder a : lookupDepths)
+            a.reset();
+        intVals.reset();
+        boolVals.reset();
+        nullVals.reset();
+        closures.reset();
+        calls.reset();
+        loopIterations.reset();
+    }
+
+    /**
+     * Writes the state of the inline cache of every call site in the
+     * tree, with its hits and misses, one line per site.  Sites are named
+     * by the function they are in and the function they call.
+     */
+    static void writeCallSites(Expression tree, PrintStream out) {
+        out.printf("%-30s %-16s %10s %10s%n", "call site", "cache", "hits", "misses");
+        Set<FunctionAppExpr> seen = Collections.newSetFromMap(new IdentityHashMap<FunctionAppExpr,Boolean>());
+        tree.accept(new ExpressionBaseVisitor<Void>() {
+            private String in = "(program)";
+
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                String outer = in;
+                in = e.getLabel();
+                visit(e.getBody());
+                in = outer;
+                return null;
+            }
+
+            public Void visitFunctionApp(FunctionAppExpr e) {
+                if (seen.add(e)) {
+                    Expression f = e.getFunction();
+                    String callee = f instanceof VarExpr ? ((VarExpr) f).getVarName() : "(expression)";
+                    out.printf("%-30s %-16s %10d %10d%n", in + " -> " + callee,
+                            e.getCacheState(), e.getHits(), e.getMisses());
+                }
+                return super.visitFunctionApp(e);
+            }
+        });
+    }
+
+    /**
+     * Writes all counters, one per line.
+     */
+    static void write(PrintStream out) {
+        out.printf("environments created %d%n", counters.getEnvironmentsCreated());
+        out.printf("frames reused        %d%n", counters.getFramesReused());
+        out.printf("resolveVar calls     %d%n", counters.getResolveVarCalls());
+        out.printf("slot lookups         %d%n", counters.getSlotLookups());
+        long[] h = counters.getLookupDepthHistogram();
+        for (int i = 0; i < h.length; i++)
+            if (h[i] > 0)
+                out.printf("  depth %2d%s %14d%n", i, i == h.length - 1 ? "+" : " ", h[i]);
+        out.printf("IntVals allocated    %d%n", counters.getIntValsAllocated());
+        out.printf("BoolVals allocated   %d%n", counters.getBoolValsAllocated());
+        out.printf("NullVals allocated   %d%n", counters.getNullValsAllocated());
+        out.printf("closures created     %d%n", counters.getClosuresCreated());
+        out.printf("closure calls        %d%n", counters.getClosureCalls());
+        out.printf("loop iterations      %d%n", counters.getLoopIterations());
+    }
+}
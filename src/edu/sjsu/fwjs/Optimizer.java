@@ -0,0 +1,233 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Simplifies the tree produced by ExpressionBuilderVisitor.
+ * Runs before the Resolver, and builds a new tree rather than changing
+ * the old one, so the analyses done by the node constructors
+ * (e.g. tail call marking) hold for the result.
+ *
+ * <ul>
+ * <li>BinOpExprs with constant operands are folded.  Ones that would fail
+ * (e.g. a division by zero) are left alone, to fail at run time.</li>
+ * <li>An if or while with a constant condition keeps only the code that runs.</li>
+ * <li>A var declared in a function but never read there is dropped, with
+ * every assignment to it, when none of them has side effects.  Globals are
+ * always kept, because code resolved later against the same globals may
+ * still read them.</li>
+ * </ul>
+ */
+public class Optimizer implements ExpressionVisitor<Expression> {
+    // Innermost enclosing function last.
+    private List<Function> functions = new ArrayList<Function>();
+
+    private static class Function {
+        // The vars to drop, once the body has been simplified.
+        Set<String> dead = Collections.emptySet();
+        // Whether the body is being visited again to drop them.
+        boolean dropping;
+    }
+
+    public Expression optimize(Expression prog) {
+        return visit(prog);
+    }
+
+    private Expression visit(Expression e) {
+        return e == null ? null : e.accept(this);
+    }
+
+    public Expression visitValue(ValueExpr e) {
+        return e;
+    }
+
+    public Expression visitVar(VarExpr e) {
+        return new VarExpr(e.getVarName());
+    }
+
+    public Expression visitPrint(PrintExpr e) {
+        return new PrintExpr(visit(e.getExp()));
+    }
+
+    public Expression visitBinOp(BinOpExpr e) {
+        Expression left = visit(e.getLeft());
+        Expression right = visit(e.getRight());
+        if (left instanceof ValueExpr && right instanceof ValueExpr) {
+            try {
+                return new ValueExpr(GenericBinOpNode.apply(e.getOp(),
+                        ((ValueExpr) left).getValue(), ((ValueExpr) right).getValue()));
+            } catch (RuntimeException ex) {
+                // Keep the error for run time.
+            }
+        }
+        return new BinOpExpr(e.getOp(), left, right);
+    }
+
+    public Expression visitIf(IfExpr e) {
+        Expression cond = visit(e.getCond());
+        Expression thn = visit(e.getThen());
+        Expression els = visit(e.getElse());
+        if (cond instanceof ValueExpr && ((ValueExpr) cond).getValue() instanceof BoolVal) {
+            if (((BoolVal) ((ValueExpr) cond).getValue()).toBoolean())
+                return thn;
+            return els != null ? els : new ValueExpr(new NullVal());
+        }
+        return new IfExpr(cond, thn, els);
+    }
+
+    public Expression visitWhile(WhileExpr e) {
+        Expression cond = visit(e.getCond());
+        if (cond instanceof ValueExpr && BoolVal.FALSE.equals(((ValueExpr) cond).getValue()))
+            return new ValueExpr(new NullVal());
+        Expression body = visit(e.getBody());
+        return new WhileExpr(cond, body);
+    }
+
+    public Expression visitSeq(SeqExpr e) {
+        Expression first = visit(e.getFirst());
+        Expression second = visit(e.getSecond());
+        // The value of the first expression is discarded.
+        if (isPure(first))
+            return second;
+        return new SeqExpr(first, second);
+    }
+
+    public Expression visitVarDecl(VarDeclExpr e) {
+        Expression exp = visit(e.getExp());
+        // Its value may still be used, e.g. as the value of the function.
+        if (isDead(e.getVarName()))
+            return exp;
+        return new VarDeclExpr(e.getVarName(), exp);
+    }
+
+    public Expression visitAssign(AssignExpr e) {
+        Expression exp = visit(e.getExp());
+        if (isDead(e.getVarName()))
+            return exp;
+        return new AssignExpr(e.getVarName(), exp);
+    }
+
+    public Expression visitFunctionDecl(FunctionDeclExpr e) {
+        // Already simplified, in the first visit of the enclosing function.
+        if (!functions.isEmpty() && current().dropping)
+            return e;
+        Function function = new Function();
+        functions.add(function);
+        Expression body = visit(e.getBody());
+        if (body != null) {
+            function.dead = deadVars(e.getParams(), body);
+            if (!function.dead.isEmpty()) {
+                function.dropping = true;
+                body = visit(body);
+            }
+        }
+        functions.remove(functions.size() - 1);
+        FunctionDeclExpr f = new FunctionDeclExpr(e.getParams(), body);
+        f.setName(e.getName());
+        f.setLine(e.getLine());
+        return f;
+    }
+
+    public Expression visitFunctionApp(FunctionAppExpr e) {
+        List<Expression> args = new ArrayList<Expression>();
+        for (Expression arg : e.getArgs())
+            args.add(visit(arg));
+        return new FunctionAppExpr(visit(e.getFunction()), args);
+    }
+
+    private Function current() {
+        return functions.get(functions.size() - 1);
+    }
+
+    private boolean isDead(String name) {
+        return !functions.isEmpty() && current().dead.contains(name);
+    }
+
+    /**
+     * The vars of a function body that can be dropped: declared once, by
+     * the function itself and not in a loop, where running the declaration
+     * twice would fail, never read, and with no side effects in the
+     * declaration or any assignment.  An assignment must also come after
+     * the declaration, in the function itself; before it, or from a nested
+     * function, the name may still mean the var of an enclosing function.
+     * A var declared in an if may not be assigned at all, since the
+     * assignment could then run without it.
+     */
+    private static Set<String> deadVars(List<String> params, Expression body) {
+        Map<String,Integer> reads = new HashMap<String,Integer>();
+        Map<String,Integer> decls = new HashMap<String,Integer>();
+        Set<String> declared = new HashSet<String>();
+        Set<String> conditional = new HashSet<String>();
+        Set<String> assigned = new HashSet<String>();
+        Set<String> kept = new HashSet<String>(params);
+        body.accept(new ExpressionBaseVisitor<Void>() {
+            // Functions, and ifs or loops, around the node being visited.
+            int nested, branches, loops;
+
+            public Void visitVar(VarExpr v) {
+                reads.merge(v.getVarName(), 1, Integer::sum);
+                return null;
+            }
+            public Void visitVarDecl(VarDeclExpr d) {
+                super.visitVarDecl(d);
+                String name = d.getVarName();
+                decls.merge(name, 1, Integer::sum);
+                if (nested > 0 || loops > 0 || !isPure(d.getExp()))
+                    kept.add(name);
+                else if (branches > 0)
+                    conditional.add(name);
+                declared.add(name);
+                return null;
+            }
+            public Void visitAssign(AssignExpr a) {
+                super.visitAssign(a);
+                String name = a.getVarName();
+                if (nested > 0 || !declared.contains(name) || !isPure(a.getExp()))
+                    kept.add(name);
+                assigned.add(name);
+                return null;
+            }
+            public Void visitIf(IfExpr e) {
+                branches++;
+                super.visitIf(e);
+                branches--;
+                return null;
+            }
+            public Void visitWhile(WhileExpr e) {
+                loops++;
+                super.visitWhile(e);
+                loops--;
+                return null;
+            }
+            public Void visitFunctionDecl(FunctionDeclExpr f) {
+                // Its params shadow the function's vars.
+                kept.addAll(f.getParams());
+                nested++;
+                super.visitFunctionDecl(f);
+                nested--;
+                return null;
+            }
+        });
+        Set<String> dead = new HashSet<String>();
+        for (Map.Entry<String,Integer> decl : decls.entrySet()) {
+            String name = decl.getKey();
+            if (decl.getValue() == 1 && !reads.containsKey(name) && !kept.contains(name)
+                    && !(conditional.contains(name) && assigned.contains(name)))
+                dead.add(name);
+        }
+        return dead;
+    }
+
+    /**
+     * Whether evaluating the expression can neither fail nor change anything.
+     */
+    private static boolean isPure(Expression e) {
+        return e instanceof ValueExpr || e instanceof VarExpr || e instanceof FunctionDeclExpr;
+    }
+}
@@ -0,0 +1,307 @@
+package edu.sjsu.fwjs;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Where print writes.  Printed values are collected in one reusable byte
+ * buffer and written out in large chunks, either to an OutputStream or
+ * to a channel, e.g. a FileChannel.  Ints and booleans are formatted
+ * straight into the buffer, without making a String first.
+ *
+ * Every line ends with the platform's line separator, as println would.
+ * The buffer is written out when it holds flushSize bytes (by default
+ * when it is full), when the oldest line in it is older than the flush
+ * delay (off by default), and on flush or close.  Whoever sets up a sink
+ * for a run flushes it when the script ends.  The flush delay is kept by
+ * a daemon thread, so a script that prints a line and then computes for
+ * a long time without printing still has its line written out in time.
+ *
+ * A sink is meant for one script at a time and is not thread-safe,
+ * except against that daemon thread: with a flush delay, print takes the
+ * sink's lock, which it does not need otherwise.  While a script runs (see run), print writes to its sink, whichever
+ * environment the printing function was created in, e.g. a prelude.
+ * Outside of a run, an Environment without a sink of its own prints to a
+ * per-thread sink that writes every line through to System.out.
+ */
+public final class OutputSink implements Flushable, Closeable {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // Longest int: "-2147483648".
+    private static final int MAX_INT_LENGTH = 11;
+
+    private static final ThreadLocal<OutputSink> stdout = ThreadLocal.withInitial(() -> {
+        OutputSink sink = new OutputSink((OutputStream) null, 256);
+        sink.setFlushSize(1);
+        return sink;
+    });
+    // The sink of the script running on each thread, if any.
+    private static final ThreadLocal<OutputSink> current = new ThreadLocal<OutputSink>();
+
+    private final byte[] buf;
+    private final ByteBuffer wrapped;
+    private int count;
+    // Exactly one of these is the target; a null stream means System.out.
+    private final OutputStream stream;
+    private final WritableByteChannel channel;
+    private int flushSize;
+    private long flushDelayNanos = -1;
+    // When the oldest byte in the buffer was printed.
+    private long pendingSince;
+    // Whether the daemon thread is due to look at the buffer.
+    private boolean flushScheduled;
+
+    public OutputSink(OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public OutputSink(OutputStream out, int capacity) {
+        this(out, null, capacity);
+    }
+
+    public OutputSink(WritableByteChannel out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public OutputSink(WritableByteChannel out, int capacity) {
+        this(null, out, capacity);
+        if (out == null) throw new NullPointerException();
+    }
+
+    private OutputSink(OutputStream stream, WritableByteChannel channel, int capacity) {
+        if (capacity < MAX_INT_LENGTH + 1)
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        this.stream = stream;
+        this.channel = channel;
+        this.buf = new byte[capacity];
+        this.wrapped = channel == null ? null : ByteBuffer.wrap(buf);
+        this.flushSize = capacity;
+    }
+
+    /**
+     * A sink that writes to the file through a FileChannel, replacing
+     * whatever the file held.  Close it to write out the rest.
+     */
+    public static OutputSink open(Path file) throws IOException {
+        return new OutputSink(FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * The current thread's sink for System.out, which writes every line
+     * through, like System.out.println.
+     */
+    static OutputSink stdout() {
+        return stdout.get();
+    }
+
+    /**
+     * Runs the task on the current thread with every print writing here.
+     */
+    public <T> T run(Supplier<T> task) {
+        OutputSink outer = current.get();
+        current.set(this);
+        try {
+            return task.get();
+        } finally {
+            if (outer == null) current.remove();
+            else current.set(outer);
+        }
+    }
+
+    /**
+     * The sink of the script running on the current thread, or null.
+     */
+    static OutputSink current() {
+        return current.get();
+    }
+
+    /**
+     * Writes the buffer out as soon as it holds this many bytes.
+     * 1 writes every line through.
+     */
+    public void setFlushSize(int bytes) {
+        if (bytes < 1) throw new IllegalArgumentException("Flush size must be positive");
+        this.flushSize = Math.min(bytes, buf.length);
+    }
+
+    /**
+     * Writes the buffer out once the oldest line in it is this old, whether
+     * or not anything else is printed.  Negative turns it off.
+     */
+    public synchronized void setFlushDelay(long millis) {
+        this.flushDelayNanos = millis < 0 ? -1 : millis * 1_000_000;
+    }
+
+    /**
+     * Prints the value on a line of its own.
+     */
+    public void print(Value v) {
+        if (flushDelayNanos < 0) {
+            append(v);
+        } else {
+            synchronized (this) {
+                append(v);
+            }
+        }
+    }
+
+    private void append(Value v) {
+        if (count == 0 && flushDelayNanos >= 0) {
+            pendingSince = System.nanoTime();
+            if (!flushScheduled) {
+                flushScheduled = true;
+                Flusher.timer.schedule(this::flushIfDue, flushDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (v instanceof IntVal)
+            writeInt(((IntVal) v).toInt());
+        else if (v instanceof BoolVal)
+            write(((BoolVal) v).toBoolean() ? TRUE : FALSE);
+        else if (v instanceof NullVal)
+            write(NULL);
+        else
+            write(v.toString().getBytes(StandardCharsets.UTF_8));
+        if (count + NEWLINE.length > buf.length) drain();
+        for (byte b : NEWLINE)
+            buf[count++] = b;
+        if (count >= flushSize
+                || flushDelayNanos >= 0 && System.nanoTime() - pendingSince > flushDelayNanos)
+            flush();
+    }
+
+    private void writeInt(int i) {
+        if (count + MAX_INT_LENGTH > buf.length) drain();
+        if (i == Integer.MIN_VALUE) {
+            write("-2147483648".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (i < 0) {
+            buf[count++] = '-';
+            i = -i;
+        }
+        int end = count + digits(i);
+        for (int p = end - 1; p >= count; p--) {
+            buf[p] = (byte) ('0' + i % 10);
+            i /= 10;
+        }
+        count = end;
+    }
+
+    private static int digits(int i) {
+        int n = 1;
+        while (i >= 10) {
+            i /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    private void write(byte[] bytes) {
+        if (count + bytes.length > buf.length) {
+            drain();
+            if (bytes.length > buf.length) {
+                writeOut(bytes, bytes.length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Runs on the daemon thread: writes the buffer out if its oldest line
+     * is as old as the flush delay, or looks again when it will be.  A
+     * write that fails here fails again on the owner's next flush.
+     */
+    private synchronized void flushIfDue() {
+        flushScheduled = false;
+        if (count == 0 || flushDelayNanos < 0) return;
+        long wait = pendingSince + flushDelayNanos - System.nanoTime();
+        if (wait > 0) {
+            flushScheduled = true;
+            Flusher.timer.schedule(this::flushIfDue, wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        try {
+            flush();
+        } catch (UncheckedIOException e) {}
+    }
+
+    /**
+     * Writes out everything printed so far.
+     */
+    @Override
+    public synchronized void flush() {
+        drain();
+        try {
+            if (stream != null) stream.flush();
+            else if (channel == null) System.out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes out everything printed so far and closes the target.
+     */
+    @Override
+    public synchronized void close() {
+        flush();
+        try {
+            if (stream != null) stream.close();
+            else if (channel != null) channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        if (count == 0) return;
+        writeOut(buf, count);
+        count = 0;
+    }
+
+    private void writeOut(byte[] bytes, int length) {
+        try {
+            if (channel != null) {
+                ByteBuffer b = bytes == buf ? wrapped : ByteBuffer.wrap(bytes);
+                b.clear().limit(length);
+                while (b.hasRemaining())
+                    channel.write(b);
+            } else {
+                OutputStream out = stream != null ? stream : System.out;
+                out.write(bytes, 0, length);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The daemon thread of the flush delays of all sinks, started with the
+     * first sink that has one.
+     */
+    private static final class Flusher {
+        static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "fwjs-output-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
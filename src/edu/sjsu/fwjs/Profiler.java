@@ -0,0 +1,332 @@
+package edu.sjsu.fwjs;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler at the level of FWJS functions.
+ *
+ * While it runs, every thread has a field with the frame of the FWJS
+ * function it is in.  A frame stands for one call path: it knows its
+ * function and the frame of its caller, and it keeps the frames of the
+ * functions called from it, so that a call that takes the same path as
+ * before finds its frame again instead of making one.  ClosureVal.invoke
+ * (and HotFunctionCompiler.direct and complete, for calls that compiled
+ * code makes itself) moves the field to the callee's frame when it calls
+ * it and back when it returns.  That is a lookup of the thread's field and
+ * two writes per call, and nothing at all when the profiler is off.
+ * Calls are not counted or timed one by one.  A daemon thread reads
+ * the field of every thread at a fixed interval, without stopping the
+ * threads, and counts how often each frame was seen; the call paths are
+ * only put together from the frames when the profiler stops.
+ *
+ * Functions are labeled with the variable they were bound to and the
+ * line they start on (see FunctionDeclExpr.getLabel).  Time the thread
+ * that started the profiler spends outside of any FWJS function, at the
+ * top level of the script but also e.g. parsing it, is shown as (program).
+ *
+ * Only one profiler can run at a time.
+ */
+public final class Profiler {
+    public static final long DEFAULT_INTERVAL_MICROS = 1000;
+    private static final String PROGRAM = "(program)";
+
+    // Whether calls should be recorded; checked on every FWJS call.
+    static volatile boolean enabled;
+    private static final List<Track> tracks = new CopyOnWriteArrayList<Track>();
+    private static final ThreadLocal<Track> current = ThreadLocal.withInitial(() -> {
+        Track t = new Track(Thread.currentThread());
+        tracks.add(t);
+        return t;
+    });
+    // The Track looked up last, which saves the thread-local lookup while
+    // one thread makes all the calls.  Racy, but a Track's thread is final.
+    private static Track last;
+
+    private final long intervalNanos;
+    // How often each frame was seen.  Only the sampler thread touches it
+    // while the profiler runs.
+    private final Map<Frame,int[]> seen = new IdentityHashMap<Frame,int[]>();
+    // All samples, as a tree of the call paths; built by stop.
+    private final Node root = new Node(null);
+    private int samples;
+    private Thread sampler;
+    private volatile boolean running;
+    private Track starter;
+    private Frame starterCaller;
+
+    public Profiler() {
+        this(DEFAULT_INTERVAL_MICROS);
+    }
+
+    public Profiler(long intervalMicros) {
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+    }
+
+    /**
+     * Where in the FWJS functions the current thread is.
+     */
+    static Track track() {
+        Track t = last;
+        if (t != null && t.thread == Thread.currentThread())
+            return t;
+        t = current.get();
+        last = t;
+        return t;
+    }
+
+    /**
+     * Starts recording calls and sampling them.  The calling thread's
+     * own top-level code is sampled too, as (program), until stop.
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        enabled = true;
+        starter = track();
+        starterCaller = starter.enter(null);
+        sampler = new Thread(this::sample, "fwjs-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Stops sampling and waits for the sampler to finish.
+     * Must be called from the thread that called start.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) return;
+        running = false;
+        enabled = false;
+        LockSupport.unpark(sampler);
+        sampler.join();
+        starter.exit(starterCaller);
+        for (Map.Entry<Frame,int[]> e : seen.entrySet())
+            add(e.getKey(), e.getValue()[0]).self += e.getValue()[0];
+        seen.clear();
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    private void sample() {
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            for (Track t : tracks) {
+                if (!t.thread.isAlive()) {
+                    tracks.remove(t);
+                    continue;
+                }
+                Frame frame = t.frame();
+                if (frame.caller == null) continue;
+                seen.computeIfAbsent(frame, f -> new int[1])[0]++;
+                samples++;
+            }
+        }
+    }
+
+    /**
+     * Adds n samples to the call path of frame and all paths it extends,
+     * and returns the node of the call path.
+     */
+    private Node add(Frame frame, int n) {
+        FunctionDeclExpr[] path = new FunctionDeclExpr[frame.depth];
+        for (Frame f = frame; f.caller != null; f = f.caller)
+            path[f.depth - 1] = f.decl;
+        Node node = root;
+        node.total += n;
+        for (FunctionDeclExpr decl : path) {
+            node = node.child(decl);
+            node.total += n;
+        }
+        return node;
+    }
+
+    /**
+     * Writes the samples in the collapsed-stack format of flame graph tools:
+     * one line per call path, its frames separated by semicolons, followed
+     * by the number of samples that ended in it.
+     */
+    public void writeCollapsed(PrintStream out) {
+        writeCollapsed(out, root, "");
+    }
+
+    private void writeCollapsed(PrintStream out, Node node, String path) {
+        for (Node child : node.children.values()) {
+            String childPath = path.isEmpty() ? label(child.decl) : path + ";" + label(child.decl);
+            if (child.self > 0)
+                out.println(childPath + " " + child.self);
+            writeCollapsed(out, child, childPath);
+        }
+    }
+
+    /**
+     * Writes a table of the functions, hottest first: self is the share of
+     * samples taken in the function itself, total also counts the
+     * functions it called.
+     */
+    public void writeTable(PrintStream out) {
+        Map<FunctionDeclExpr,int[]> times = new IdentityHashMap<FunctionDeclExpr,int[]>();
+        tally(root, times, new IdentityHashMap<FunctionDeclExpr,Boolean>());
+        List<Map.Entry<FunctionDeclExpr,int[]>> rows = new ArrayList<>(times.entrySet());
+        rows.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Integer.compare(b.getValue()[0], a.getValue()[0])
+                : Integer.compare(b.getValue()[1], a.getValue()[1]));
+        int n = Math.max(samples, 1);
+        out.printf("%d samples, every %d us%n", samples, TimeUnit.NANOSECONDS.toMicros(intervalNanos));
+        out.printf("%7s %7s %7s %7s  %s%n", "self%", "self", "total%", "total", "function");
+        for (Map.Entry<FunctionDeclExpr,int[]> row : rows) {
+            int[] t = row.getValue();
+            out.printf("%6.1f%% %7d %6.1f%% %7d  %s%n",
+                    100.0 * t[0] / n, t[0], 100.0 * t[1] / n, t[1], label(row.getKey()));
+        }
+    }
+
+    /**
+     * Adds up self and total samples per function.  A recursive function
+     * is counted once per sample, at its outermost call.
+     */
+    private static void tally(Node node, Map<FunctionDeclExpr,int[]> times,
+            Map<FunctionDeclExpr,Boolean> onPath) {
+        for (Node child : node.children.values()) {
+            int[] t = times.computeIfAbsent(child.decl, d -> new int[2]);
+            t[0] += child.self;
+            boolean outermost = onPath.put(child.decl, Boolean.TRUE) == null;
+            if (outermost) t[1] += child.total;
+            tally(child, times, onPath);
+            if (outermost) onPath.remove(child.decl);
+        }
+    }
+
+    private static String label(FunctionDeclExpr decl) {
+        return decl == null ? PROGRAM : decl.getLabel();
+    }
+
+    /**
+     * One call path in the samples.
+     */
+    private static class Node {
+        final FunctionDeclExpr decl;
+        final Map<FunctionDeclExpr,Node> children = new IdentityHashMap<FunctionDeclExpr,Node>();
+        int self;
+        int total;
+
+        Node(FunctionDeclExpr decl) {
+            this.decl = decl;
+        }
+
+        Node child(FunctionDeclExpr decl) {
+            Node child = children.get(decl);
+            if (child == null) {
+                child = new Node(decl);
+                children.put(decl, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * One call path: a function and the frame of its caller.  The root
+     * frame of a thread, where it is in no function, has neither.
+     * Made and looked up only by the thread it belongs to; the sampler
+     * only reads the final fields.
+     */
+    static final class Frame {
+        final FunctionDeclExpr decl;
+        final Frame caller;
+        final int depth;
+        // The frame called last from here, which is usually the one the
+        // next call wants, and all the others.
+        private Frame last;
+        private Map<FunctionDeclExpr,Frame> callees;
+
+        Frame(FunctionDeclExpr decl, Frame caller) {
+            this.decl = decl;
+            this.caller = caller;
+            this.depth = caller == null ? 0 : caller.depth + 1;
+        }
+
+        Frame callee(FunctionDeclExpr decl) {
+            Frame f = last;
+            if (f != null && f.decl == decl) return f;
+            if (callees == null) callees = new IdentityHashMap<FunctionDeclExpr,Frame>();
+            f = callees.get(decl);
+            if (f == null) {
+                f = new Frame(decl, this);
+                callees.put(decl, f);
+            }
+            last = f;
+            return f;
+        }
+    }
+
+    /**
+     * The frame one thread is in.  Written only by its thread, with opaque
+     * writes, which are as cheap as plain ones but are sure to become
+     * visible to the sampler.
+     */
+    static final class Track {
+        private static final VarHandle FRAME;
+        static {
+            try {
+                FRAME = MethodHandles.lookup().findVarHandle(Track.class, "frame", Frame.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final Thread thread;
+        private Frame frame = new Frame(null, null);
+
+        Track(Thread thread) {
+            this.thread = thread;
+        }
+
+        Frame frame() {
+            return (Frame) FRAME.getOpaque(this);
+        }
+
+        /**
+         * Moves into a call of decl, and returns the frame to go back to.
+         */
+        Frame enter(FunctionDeclExpr decl) {
+            Frame caller = frame;
+            FRAME.setOpaque(this, caller.callee(decl));
+            return caller;
+        }
+
+        /**
+         * Lets a call in tail position take the place of the running one.
+         */
+        void replace(FunctionDeclExpr decl) {
+            Frame f = frame;
+            if (f.caller != null && f.decl != decl)
+                FRAME.setOpaque(this, f.caller.callee(decl));
+        }
+
+        /**
+         * Goes back to the frame enter returned, also from calls that
+         * ended with an exception.
+         */
+        void exit(Frame caller) {
+            FRAME.setOpaque(this, caller);
+        }
+
+        /**
+         * Goes back to the caller of the current frame.
+         */
+        void exit() {
+            Frame f = frame;
+            if (f.caller != null) FRAME.setOpaque(this, f.caller);
+        }
+    }
+}
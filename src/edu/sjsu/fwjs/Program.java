@@ -0,0 +1,54 @@
+package edu.sjsu.fwjs;
+
+/**
+ * A compiled script: the resolved expression tree and the layout of its globals.
+ * A Program never changes once it is built, so it can be cached and run by
+ * many threads at once.  Every run gets its own global Environment.
+ *
+ * (Nodes do still rewrite themselves while running, see BinOpNode, and hot
+ * functions are compiled, see HotFunctionCompiler.  Both only ever swap in
+ * an equivalent implementation, so threads racing on them stay correct.)
+ */
+public final class Program {
+    private final Expression tree;
+    private final Scope globals;
+
+    Program(Expression tree, Scope globals) {
+        this.tree = tree;
+        this.globals = globals;
+    }
+
+    /**
+     * Creates an empty global environment for one run of this program.
+     */
+    public Environment newGlobalEnvironment() {
+        return new Environment(globals);
+    }
+
+    /**
+     * Creates a global environment for one run of this program on top of
+     * a frozen prelude (see ScriptEngine.loadPrelude).  The run gets a
+     * copy of the prelude's variables, its closures included, so nothing
+     * it does is seen by other runs or by the prelude.
+     */
+    public Environment newGlobalEnvironment(Environment prelude) {
+        return new Environment(globals, prelude);
+    }
+
+    /**
+     * Runs the program against fresh globals and returns the value of its last statement.
+     */
+    public Value run() {
+        return run(newGlobalEnvironment());
+    }
+
+    /**
+     * Runs the program against the given globals.
+     * The environment must not be used by another thread at the same time.
+     * Everything the run prints goes to the output set on the globals.
+     */
+    public Value run(Environment env) {
+        OutputSink out = env.getOwnOutput();
+        return out == null ? tree.evaluate(env) : out.run(() -> tree.evaluate(env));
+    }
+}
@@ -0,0 +1,285 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static lexical addressing pass, run on the tree produced by
+ * ExpressionBuilderVisitor.
+ * Every variable reference, assignment and declaration is bound to the
+ * (depth, slot) of the scope that declares it, so evaluation can use
+ * array-backed frames instead of hashing names at every scope level.
+ *
+ * FWJS declarations happen at run time, so a bound slot may still be empty
+ * when it is read (e.g. a read before the local var statement runs).
+ * The expressions then fall back to the name-based Environment methods,
+ * which keeps the original scoping behavior.
+ *
+ * It also does closure conversion.  A function captures the variables of
+ * enclosing functions that it (or a function inside it) uses, and nothing
+ * else: its closures carry a record of just those variables, on top of the
+ * globals (see FunctionDeclExpr.capture).  So every variable is found in
+ * the function's own frame (depth 0), its captures (depth 1), or the
+ * globals, and no closure keeps the frame it was made in.  That is also
+ * why every frame can be reused (see FramePool).
+ *
+ * Until a var is declared, its name still means whatever it meant in the
+ * enclosing function.  So a function also captures the variables that its
+ * own vars shadow, and the vars read them until they are declared (see
+ * Cell.fallback).
+ */
+public class Resolver extends ExpressionBaseVisitor<Void> {
+    private Scope globalScope = new Scope();
+    // Functions enclosing the node being visited; the innermost one is last.
+    private List<FunctionDeclExpr> functions = new ArrayList<FunctionDeclExpr>();
+    // Per function: the names used in it that it does not declare, and the
+    // names it declares or assigns anywhere (nested functions included).
+    private Map<FunctionDeclExpr,Set<String>> freeNames = new IdentityHashMap<>();
+    private Map<FunctionDeclExpr,Set<String>> varNames = new IdentityHashMap<>();
+    private Map<FunctionDeclExpr,Set<String>> writtenNames = new IdentityHashMap<>();
+
+    /**
+     * Resolves a whole program against the global scope of this resolver.
+     * Can be called repeatedly to add more top-level code to the same globals.
+     */
+    public Expression resolve(Expression prog) {
+        declareLocals(prog, globalScope);
+        visit(prog);
+        return prog;
+    }
+
+    /**
+     * Creates a global environment using the frame layout of the resolved globals.
+     */
+    public Environment newGlobalEnvironment() {
+        return new Environment(globalScope);
+    }
+
+    /**
+     * Creates a global environment on top of a frozen one, e.g. a prelude.
+     */
+    public Environment newGlobalEnvironment(Environment base) {
+        return new Environment(globalScope, base);
+    }
+
+    Scope getGlobalScope() {
+        return globalScope;
+    }
+
+    @Override
+    public Void visitVar(VarExpr e) {
+        Scope s = scopeOf(e.getVarName());
+        e.bind(depthOf(s), s, s.indexOf(e.getVarName()));
+        return null;
+    }
+
+    @Override
+    public Void visitAssign(AssignExpr e) {
+        visit(e.getExp());
+        Scope s = scopeOf(e.getVarName());
+        e.bind(depthOf(s), s, s.indexOf(e.getVarName()));
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecl(VarDeclExpr e) {
+        visit(e.getExp());
+        FunctionDeclExpr f = current();
+        Scope s = f == null ? globalScope : f.getScope();
+        e.bind(s, s.indexOf(e.getVarName()));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(FunctionDeclExpr e) {
+        Scope scope = new Scope();
+        List<String> params = e.getParams();
+        int[] paramSlots = new int[params.size()];
+        for (int i = 0; i < params.size(); i++)
+            paramSlots[i] = scope.declare(params.get(i));
+        declareLocals(e.getBody(), scope);
+        e.bind(scope, paramSlots);
+        bindCaptures(e);
+
+        functions.add(e);
+        visit(e.getBody());
+        functions.remove(functions.size() - 1);
+        return null;
+    }
+
+    /**
+     * Works out what the function captures from the function it is
+     * declared in: its free variables, and the ones its vars shadow.
+     * That function has already captured whatever it does not declare
+     * itself, so every captured variable is found one level up.
+     */
+    private void bindCaptures(FunctionDeclExpr e) {
+        FunctionDeclExpr outer = current();
+        Scope captures = new Scope();
+        List<Scope> from = new ArrayList<Scope>();
+        List<Integer> depths = new ArrayList<Integer>();
+        List<Integer> slots = new ArrayList<Integer>();
+        if (outer != null) {
+            Set<String> names = new LinkedHashSet<String>(freeNames(e));
+            names.addAll(varNames(e));
+            for (String name : names) {
+                int slot = outer.getScope().indexOf(name);
+                if (slot >= 0) {
+                    from.add(outer.getScope());
+                    depths.add(0);
+                    // A parameter that is never assigned can be copied;
+                    // anything else may change after the closure is made.
+                    if (!outer.getParams().contains(name) || writtenNames(outer).contains(name))
+                        outer.getScope().markCell(slot);
+                } else {
+                    slot = outer.getCaptures().indexOf(name);
+                    if (slot < 0) continue; // a global
+                    from.add(outer.getCaptures());
+                    depths.add(1);
+                }
+                int index = captures.declare(name);
+                slots.add(slot);
+                if (varNames(e).contains(name))
+                    e.getScope().setFallback(e.getScope().indexOf(name), captures, index);
+            }
+        }
+        e.bindCaptures(captures, from.toArray(new Scope[0]),
+                depths.stream().mapToInt(Integer::intValue).toArray(),
+                slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private FunctionDeclExpr current() {
+        return functions.isEmpty() ? null : functions.get(functions.size() - 1);
+    }
+
+    /**
+     * Finds the scope holding the name: the current function's frame,
+     * its captures, or else the global scope, where assignments create
+     * undeclared names.
+     */
+    private Scope scopeOf(String name) {
+        FunctionDeclExpr f = current();
+        if (f != null) {
+            if (f.getScope().indexOf(name) >= 0)
+                return f.getScope();
+            if (f.getCaptures().indexOf(name) >= 0)
+                return f.getCaptures();
+        }
+        globalScope.declare(name);
+        return globalScope;
+    }
+
+    /**
+     * How many scopes out from the current frame s is.  A function's
+     * frame sits on its captures, if it has any, which sit on the globals.
+     */
+    private int depthOf(Scope s) {
+        FunctionDeclExpr f = current();
+        if (f == null || s == f.getScope())
+            return 0;
+        if (s == f.getCaptures() || f.getCaptures().size() == 0)
+            return 1;
+        return 2;
+    }
+
+    /**
+     * The names used in the function, or in functions inside it, that it
+     * does not declare itself, in the order they first appear.  A var of
+     * a function inside counts as used, for the variable it shadows.
+     */
+    private Set<String> freeNames(FunctionDeclExpr f) {
+        Set<String> free = freeNames.get(f);
+        if (free != null) return free;
+        Set<String> declared = new HashSet<String>(f.getParams());
+        Scope locals = new Scope();
+        declareLocals(f.getBody(), locals);
+        for (int i = 0; i < locals.size(); i++)
+            declared.add(locals.nameAt(i));
+        Set<String> used = new LinkedHashSet<String>();
+        if (f.getBody() != null) f.getBody().accept(new ExpressionBaseVisitor<Void>() {
+            @Override
+            public Void visitVar(VarExpr e) {
+                used.add(e.getVarName());
+                return null;
+            }
+            @Override
+            public Void visitAssign(AssignExpr e) {
+                used.add(e.getVarName());
+                return super.visitAssign(e);
+            }
+            @Override
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                used.addAll(freeNames(e));
+                used.addAll(varNames(e));
+                return null;
+            }
+        });
+        used.removeAll(declared);
+        freeNames.put(f, used);
+        return used;
+    }
+
+    /**
+     * The vars of the function that are not also parameters, which can
+     * be read before they are declared.
+     */
+    private Set<String> varNames(FunctionDeclExpr f) {
+        Set<String> vars = varNames.get(f);
+        if (vars != null) return vars;
+        Scope locals = new Scope();
+        declareLocals(f.getBody(), locals);
+        vars = new LinkedHashSet<String>();
+        for (int i = 0; i < locals.size(); i++)
+            vars.add(locals.nameAt(i));
+        vars.removeAll(f.getParams());
+        varNames.put(f, vars);
+        return vars;
+    }
+
+    /**
+     * The names declared or assigned anywhere in the function.
+     */
+    private Set<String> writtenNames(FunctionDeclExpr f) {
+        Set<String> written = writtenNames.get(f);
+        if (written != null) return written;
+        Set<String> names = new HashSet<String>();
+        if (f.getBody() != null) f.getBody().accept(new ExpressionBaseVisitor<Void>() {
+            @Override
+            public Void visitVarDecl(VarDeclExpr e) {
+                names.add(e.getVarName());
+                return super.visitVarDecl(e);
+            }
+            @Override
+            public Void visitAssign(AssignExpr e) {
+                names.add(e.getVarName());
+                return super.visitAssign(e);
+            }
+        });
+        writtenNames.put(f, names);
+        return names;
+    }
+
+    /**
+     * Adds every var declared directly in the body (not in nested functions)
+     * to the scope.  Like JS, a var belongs to the whole function body.
+     */
+    private static void declareLocals(Expression body, final Scope scope) {
+        if (body == null) return;
+        body.accept(new ExpressionBaseVisitor<Void>() {
+            @Override
+            public Void visitVarDecl(VarDeclExpr e) {
+                scope.declare(e.getVarName());
+                return super.visitVarDecl(e);
+            }
+            @Override
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                return null;
+            }
+        });
+    }
+}
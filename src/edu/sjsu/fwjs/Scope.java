@@ -0,0 +1,93 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The frame layout of a function (or of the global scope),
+ * computed once by the Resolver.
+ * Every name declared in the scope gets a fixed slot index,
+ * so an Environment built from this layout can store its
+ * variables in a plain array instead of a HashMap.
+ */
+class Scope {
+    private List<String> names = new ArrayList<String>();
+    private Map<String,Integer> slots = new HashMap<String,Integer>();
+    // Slots of variables that closures share with the frame; see Cell.
+    private BitSet cells;
+    // For variables that shadow one of an enclosing function: the slot of
+    // that one in the function's captures (see Cell.fallback).
+    private Scope fallbackScope;
+    private Map<Integer,Integer> fallbacks;
+
+    /**
+     * Returns the slot for the name, adding it to the layout if needed.
+     */
+    public int declare(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        slots.put(name, names.size());
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    /**
+     * Returns the slot for the name, or -1 if it is not part of this layout.
+     */
+    public int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public String nameAt(int slot) {
+        return names.get(slot);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Makes frames of this layout keep the variable in the slot in a Cell,
+     * because a closure captures it and it can change after that.
+     */
+    public void markCell(int slot) {
+        if (cells == null) cells = new BitSet();
+        cells.set(slot);
+    }
+
+    public boolean isCell(int slot) {
+        return cells != null && cells.get(slot);
+    }
+
+    public boolean hasCells() {
+        return cells != null;
+    }
+
+    /**
+     * Makes the variable in the slot a Cell that reads the given slot of
+     * the captures until the variable is declared.
+     */
+    public void setFallback(int slot, Scope captures, int captureSlot) {
+        markCell(slot);
+        if (fallbacks == null) fallbacks = new HashMap<Integer,Integer>();
+        fallbackScope = captures;
+        fallbacks.put(slot, captureSlot);
+    }
+
+    /**
+     * The slot of the captures that the variable in the slot falls back
+     * to, or -1 if it has none.
+     */
+    public int getFallback(int slot) {
+        Integer f = fallbacks == null ? null : fallbacks.get(slot);
+        return f == null ? -1 : f;
+    }
+
+    public Scope getFallbackScope() {
+        return fallbackScope;
+    }
+}
@@ -0,0 +1,386 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of built expression trees, so that an unchanged script
+ * does not have to be lexed and parsed again.
+ *
+ * Entries are named after the SHA-256 of the script source.  Each one holds
+ * a header (magic, format version, whether the tree was optimized, the full
+ * source hash and a CRC32 of the tree) followed by the tree in pre-order.
+ * An entry whose header does not match, or that cannot be read back, is
+ * treated as missing, and the caller rebuilds and stores the tree again.
+ */
+public class ScriptCache {
+    static final int MAGIC = 0x46574a54; // "FWJT"
+    static final int VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 32 + 4 + 4;
+
+    private final Path dir;
+
+    public ScriptCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the cached tree for the source, or null if there is no usable entry.
+     */
+    public Expression load(byte[] source, boolean optimized) {
+        return load(ByteBuffer.wrap(source), optimized);
+    }
+
+    public Expression load(ByteBuffer source, boolean optimized) {
+        byte[] hash = hash(source);
+        Path file = entry(hash, optimized);
+        if (!Files.isReadable(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_SIZE
+                    || in.getInt() != MAGIC
+                    || in.getShort() != VERSION
+                    || in.get() != (optimized ? 1 : 0))
+                return null;
+            byte[] entryHash = new byte[hash.length];
+            in.get(entryHash);
+            int length = in.getInt();
+            int crc = in.getInt();
+            if (!Arrays.equals(hash, entryHash) || length != in.remaining())
+                return null;
+            CRC32 check = new CRC32();
+            check.update(in.duplicate());
+            if ((int) check.getValue() != crc)
+                return null;
+            TreeReader reader = new TreeReader(in);
+            Expression prog = reader.read();
+            return in.hasRemaining() ? null : prog;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the tree built from the source to the cache.
+     * Failing to write only means the next run parses again.
+     */
+    public void store(byte[] source, boolean optimized, Expression prog) {
+        store(ByteBuffer.wrap(source), optimized, prog);
+    }
+
+    public void store(ByteBuffer source, boolean optimized, Expression prog) {
+        byte[] hash = hash(source);
+        try {
+            byte[] tree = TreeWriter.toBytes(prog);
+            CRC32 crc = new CRC32();
+            crc.update(tree);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + tree.length);
+            out.putInt(MAGIC).putShort((short) VERSION).put((byte) (optimized ? 1 : 0))
+                    .put(hash).putInt(tree.length).putInt((int) crc.getValue()).put(tree);
+            Files.createDirectories(dir);
+            // Write to a temporary file first, so readers never see half an entry.
+            Path tmp = Files.createTempFile(dir, "fwjs", ".tmp");
+            Files.write(tmp, out.array());
+            Files.move(tmp, entry(hash, optimized),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | IllegalArgumentException e) {
+            // Leave the cache as it is.
+        }
+    }
+
+    private Path entry(byte[] hash, boolean optimized) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash)
+            name.append(String.format("%02x", b));
+        return dir.resolve(name + (optimized ? ".O" : "") + ".fwjt");
+    }
+
+    static byte[] hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+/**
+ * Serializes an expression tree for the ScriptCache.
+ * Every node is a tag byte followed by its fields and children.
+ */
+class TreeWriter implements ExpressionVisitor<Void> {
+    static final int NULL = 0;
+    static final int VALUE = 1;
+    static final int VAR = 2;
+    static final int PRINT = 3;
+    static final int BINOP = 4;
+    static final int IF = 5;
+    static final int WHILE = 6;
+    static final int SEQ = 7;
+    static final int VAR_DECL = 8;
+    static final int ASSIGN = 9;
+    static final int FUNCTION_DECL = 10;
+    static final int FUNCTION_APP = 11;
+    // Tags of literal values.
+    static final int NULL_VAL = 0;
+    static final int INT_VAL = 1;
+    static final int BOOL_VAL = 2;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    static byte[] toBytes(Expression prog) throws IOException {
+        TreeWriter w = new TreeWriter();
+        try {
+            w.write(prog);
+        } catch (IllegalStateException e) {
+            throw (IOException) e.getCause();
+        }
+        return w.bytes.toByteArray();
+    }
+
+    private void write(Expression e) {
+        if (e == null) tag(NULL);
+        else e.accept(this);
+    }
+
+    public Void visitValue(ValueExpr e) {
+        tag(VALUE);
+        Value v = e.getValue();
+        try {
+            if (v instanceof IntVal) {
+                out.writeByte(INT_VAL);
+                out.writeInt(((IntVal) v).toInt());
+            } else if (v instanceof BoolVal) {
+                out.writeByte(BOOL_VAL);
+                out.writeBoolean(((BoolVal) v).toBoolean());
+            } else if (v instanceof NullVal) {
+                out.writeByte(NULL_VAL);
+            } else {
+                throw new IllegalArgumentException("Cannot cache a constant " + v);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return null;
+    }
+
+    public Void visitVar(VarExpr e) {
+        tag(VAR);
+        string(e.getVarName());
+        return null;
+    }
+
+    public Void visitPrint(PrintExpr e) {
+        tag(PRINT);
+        write(e.getExp());
+        return null;
+    }
+
+    public Void visitBinOp(BinOpExpr e) {
+        tag(BINOP);
+        tag(e.getOp().ordinal());
+        write(e.getLeft());
+        write(e.getRight());
+        return null;
+    }
+
+    public Void visitIf(IfExpr e) {
+        tag(IF);
+        write(e.getCond());
+        write(e.getThen());
+        write(e.getElse());
+        return null;
+    }
+
+    public Void visitWhile(WhileExpr e) {
+        tag(WHILE);
+        write(e.getCond());
+        write(e.getBody());
+        return null;
+    }
+
+    public Void visitSeq(SeqExpr e) {
+        tag(SEQ);
+        write(e.getFirst());
+        write(e.getSecond());
+        return null;
+    }
+
+    public Void visitVarDecl(VarDeclExpr e) {
+        tag(VAR_DECL);
+        string(e.getVarName());
+        write(e.getExp());
+        return null;
+    }
+
+    public Void visitAssign(AssignExpr e) {
+        tag(ASSIGN);
+        string(e.getVarName());
+        write(e.getExp());
+        return null;
+    }
+
+    public Void visitFunctionDecl(FunctionDeclExpr e) {
+        tag(FUNCTION_DECL);
+        count(e.getParams().size());
+        for (String param : e.getParams())
+            string(param);
+        string(e.getName() == null ? "" : e.getName());
+        count(e.getLine());
+        write(e.getBody());
+        return null;
+    }
+
+    public Void visitFunctionApp(FunctionAppExpr e) {
+        tag(FUNCTION_APP);
+        write(e.getFunction());
+        count(e.getArgs().size());
+        for (Expression arg : e.getArgs())
+            write(arg);
+        return null;
+    }
+
+    private void tag(int tag) {
+        try {
+            out.writeByte(tag);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void count(int n) {
+        try {
+            out.writeInt(n);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void string(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        count(b.length);
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+/**
+ * Rebuilds a tree written by the TreeWriter, straight from the mapped file.
+ * Malformed input fails with an IllegalArgumentException or a BufferUnderflowException.
+ */
+class TreeReader {
+    private final ByteBuffer in;
+
+    TreeReader(ByteBuffer in) {
+        this.in = in;
+    }
+
+    Expression read() {
+        int tag = in.get();
+        switch (tag) {
+        case TreeWriter.NULL:
+            return null;
+        case TreeWriter.VALUE:
+            return new ValueExpr(readValue());
+        case TreeWriter.VAR:
+            return new VarExpr(readString());
+        case TreeWriter.PRINT:
+            return new PrintExpr(read());
+        case TreeWriter.BINOP: {
+            int op = in.get();
+            if (op < 0 || op >= Op.values().length)
+                throw new IllegalArgumentException("Bad operator " + op);
+            Expression left = read();
+            return new BinOpExpr(Op.values()[op], left, read());
+        }
+        case TreeWriter.IF: {
+            Expression cond = read();
+            Expression thn = read();
+            return new IfExpr(cond, thn, read());
+        }
+        case TreeWriter.WHILE: {
+            Expression cond = read();
+            return new WhileExpr(cond, read());
+        }
+        case TreeWriter.SEQ: {
+            Expression first = read();
+            return new SeqExpr(first, read());
+        }
+        case TreeWriter.VAR_DECL: {
+            String name = readString();
+            return new VarDeclExpr(name, read());
+        }
+        case TreeWriter.ASSIGN: {
+            String name = readString();
+            return new AssignExpr(name, read());
+        }
+        case TreeWriter.FUNCTION_DECL: {
+            int n = readCount();
+            List<String> params = new ArrayList<String>(n);
+            for (int i = 0; i < n; i++)
+                params.add(readString());
+            String name = readString();
+            int line = in.getInt();
+            FunctionDeclExpr f = new FunctionDeclExpr(params, read());
+            f.setName(name.isEmpty() ? null : name);
+            f.setLine(line);
+            return f;
+        }
+        case TreeWriter.FUNCTION_APP: {
+            Expression f = read();
+            int n = readCount();
+            List<Expression> args = new ArrayList<Expression>(n);
+            for (int i = 0; i < n; i++)
+                args.add(read());
+            return new FunctionAppExpr(f, args);
+        }
+        default:
+            throw new IllegalArgumentException("Bad tag " + tag);
+        }
+    }
+
+    private Value readValue() {
+        int tag = in.get();
+        switch (tag) {
+        case TreeWriter.NULL_VAL:	return new NullVal();
+        case TreeWriter.INT_VAL:	return new IntVal(in.getInt());
+        case TreeWriter.BOOL_VAL:	return new BoolVal(in.get() != 0);
+        default:
+            throw new IllegalArgumentException("Bad value tag " + tag);
+        }
+    }
+
+    private int readCount() {
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining())
+            throw new IllegalArgumentException("Bad length " + n);
+        return n;
+    }
+
+    private String readString() {
+        byte[] b = new byte[readCount()];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
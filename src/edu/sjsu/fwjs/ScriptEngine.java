@@ -0,0 +1,105 @@
+package edu.sjsu.fwjs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Entry point for embedding FWJS in a Java program.
+ * A source is parsed, built and resolved once into a Program, which is
+ * kept in an LRU cache keyed by the source text, and can then be run any
+ * number of times from any number of threads.
+ *
+ * All methods are thread-safe.  Two threads compiling the same new source
+ * at the same time may both build it; only the first result is cached.
+ */
+public class ScriptEngine {
+    public static final int DEFAULT_CACHE_SIZE = 128;
+
+    private final boolean optimize;
+    private final Map<String,Program> cache;
+    // ScriptParser is not thread-safe, so each thread keeps its own.
+    private final ThreadLocal<ScriptParser> parsers = ThreadLocal.withInitial(() -> {
+        ScriptParser parser = new ScriptParser();
+        parser.setTwoStage(true);
+        return parser;
+    });
+
+    public ScriptEngine() {
+        this(DEFAULT_CACHE_SIZE, false);
+    }
+
+    /**
+     * @param cacheSize the most compiled programs to keep
+     * @param optimize whether to run the Optimizer on every program
+     */
+    public ScriptEngine(int cacheSize, boolean optimize) {
+        this.optimize = optimize;
+        this.cache = new LinkedHashMap<String,Program>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Program> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled program for the source, from the cache if possible.
+     * Throws an IllegalArgumentException if the source has syntax errors.
+     */
+    public Program compile(String source) {
+        Program program;
+        synchronized (cache) {
+            program = cache.get(source);
+        }
+        if (program != null) return program;
+
+        program = build(source);
+        synchronized (cache) {
+            Program earlier = cache.putIfAbsent(source, program);
+            return earlier != null ? earlier : program;
+        }
+    }
+
+    /**
+     * Compiles (or looks up) the source and runs it against fresh globals.
+     */
+    public Value eval(String source) {
+        return compile(source).run();
+    }
+
+    /**
+     * Runs the source once and freezes the globals it leaves behind, to be
+     * shared by later runs through Program.newGlobalEnvironment(Environment).
+     * Every run gets its own copy of the prelude's variables, so functions
+     * defined by a prelude assign the globals of the run that calls them,
+     * and print to its output.
+     */
+    public Environment loadPrelude(String source) {
+        Program program = compile(source);
+        Environment globals = program.newGlobalEnvironment();
+        program.run(globals);
+        globals.freeze();
+        return globals;
+    }
+
+    /**
+     * Number of programs currently in the cache.
+     */
+    public int getCachedCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private Program build(String source) {
+        ScriptParser parser = parsers.get();
+        Expression prog = parser.parse(source);
+        if (parser.getSyntaxErrors() > 0)
+            throw new IllegalArgumentException("Syntax errors in script");
+        if (optimize)
+            prog = new Optimizer().optimize(prog);
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        return new Program(prog, resolver.getGlobalScope());
+    }
+}
@@ -0,0 +1,213 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs batches of independent scripts concurrently in one JVM.
+ * Every job runs on its own thread with its own global Environment, and
+ * its print output goes to a buffer of its own, so jobs share nothing but
+ * the immutable Programs compiled by the ScriptEngine.
+ *
+ * On a JVM with virtual threads (Java 21+) each job gets a virtual thread.
+ * Otherwise the jobs share a pool with one platform thread per core, which
+ * is just as good for FWJS jobs, since they never block.
+ */
+public class ScriptExecutor implements AutoCloseable {
+    // Jobs print to memory, so a small buffer is as good as a large one.
+    private static final int OUTPUT_BUFFER = 8192;
+    private final ScriptEngine engine;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Environment prelude;
+    // Steps every job may take, or -1 for no limit.
+    private volatile long budget = -1;
+
+    public ScriptExecutor(ScriptEngine engine) {
+        this(engine, null);
+    }
+
+    /**
+     * Runs every job on top of the given frozen prelude (see
+     * ScriptEngine.loadPrelude), or on empty globals if it is null.
+     */
+    public ScriptExecutor(ScriptEngine engine, Environment prelude) {
+        this.engine = engine;
+        this.prelude = prelude;
+        ExecutorService vt = newVirtualThreadExecutor();
+        this.virtual = vt != null;
+        this.executor = vt != null ? vt
+                : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The outcome of one job.
+     */
+    public static final class Result {
+        private final Value value;
+        private final String output;
+        private final Throwable error;
+        private final long nanos;
+
+        Result(Value value, String output, Throwable error, long nanos) {
+            this.value = value;
+            this.output = output;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        /** Value of the script's last statement, or null if it failed. */
+        public Value getValue() { return value; }
+        /** Everything the script printed. */
+        public String getOutput() { return output; }
+        /** Why the script failed, or null. */
+        public Throwable getError() { return error; }
+        /** Time from the start of compilation to the end of the run. */
+        public long getNanos() { return nanos; }
+    }
+
+    /**
+     * Throughput and latency of a finished batch.
+     */
+    public static final class Report {
+        private final int jobs;
+        private final int failures;
+        private final long wallNanos;
+        private final long[] sorted;
+
+        Report(List<Result> results, long wallNanos) {
+            this.jobs = results.size();
+            this.wallNanos = wallNanos;
+            this.sorted = new long[jobs];
+            int failed = 0;
+            for (int i = 0; i < jobs; i++) {
+                sorted[i] = results.get(i).getNanos();
+                if (results.get(i).getError() != null) failed++;
+            }
+            this.failures = failed;
+            Arrays.sort(sorted);
+        }
+
+        public int getJobs() { return jobs; }
+        public int getFailures() { return failures; }
+
+        public double getThroughput() {
+            return wallNanos == 0 ? 0 : jobs * 1e9 / wallNanos;
+        }
+
+        /**
+         * Latency at the given percentile (0-100), in nanoseconds.
+         */
+        public long getPercentile(double p) {
+            if (jobs == 0) return 0;
+            int i = (int) Math.ceil(p / 100 * jobs) - 1;
+            return sorted[Math.max(0, Math.min(i, jobs - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d jobs (%d failed) in %.1f ms: %.0f jobs/s,"
+                    + " latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    jobs, failures, wallNanos / 1e6, getThroughput(),
+                    getPercentile(50) / 1e6, getPercentile(90) / 1e6,
+                    getPercentile(99) / 1e6, getPercentile(100) / 1e6);
+        }
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    /**
+     * Limits every job started from now on to the given number of steps
+     * (see Fuel), so that a runaway script cannot hold on to its thread.
+     * A negative budget means no limit.
+     */
+    public void setBudget(long steps) {
+        this.budget = steps;
+    }
+
+    /**
+     * Starts one job.  Failures are reported in the Result, not thrown.
+     */
+    public Future<Result> submit(String source) {
+        long steps = budget;
+        return submit(source, steps < 0 ? null : new Fuel(steps));
+    }
+
+    /**
+     * Starts one job that runs with the given Fuel, which the caller can
+     * cancel.  A job stopped by its Fuel fails with a ScriptStoppedException.
+     */
+    public Future<Result> submit(String source, Fuel fuel) {
+        return executor.submit(() -> run(source, fuel));
+    }
+
+    /**
+     * Runs all the sources and waits for them.  Results are in the order of the sources.
+     */
+    public List<Result> runAll(List<String> sources) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(sources.size());
+        for (String source : sources)
+            futures.add(submit(source));
+        List<Result> results = new ArrayList<Result>(sources.size());
+        for (Future<Result> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                results.add(new Result(null, "", e.getCause(), 0));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs all the sources, and measures the batch as a whole.
+     */
+    public Report runBatch(List<String> sources, List<Result> results) throws InterruptedException {
+        long start = System.nanoTime();
+        results.addAll(runAll(sources));
+        return new Report(results, System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private Result run(String source, Fuel fuel) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputSink out = new OutputSink(buffer, OUTPUT_BUFFER);
+        Value value = null;
+        Throwable error = null;
+        try {
+            Program program = engine.compile(source);
+            Environment globals = prelude == null
+                    ? program.newGlobalEnvironment()
+                    : program.newGlobalEnvironment(prelude);
+            globals.setOutput(out);
+            value = fuel == null ? program.run(globals) : fuel.run(() -> program.run(globals));
+        } catch (RuntimeException | StackOverflowError e) {
+            error = e;
+        }
+        out.flush();
+        return new Result(value, buffer.toString(StandardCharsets.UTF_8), error, System.nanoTime() - start);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.sjsu.fwjs;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+
+/**
+ * Turns FWJS source into an expression tree.
+ * The lexer, token stream and parser are created once and reused for
+ * every input, so parsing many scripts in one JVM does not pay for
+ * setting them up again.  (The DFA that ANTLR builds while predicting is
+ * shared by all parsers of the grammar, and warms up across inputs too.)
+ *
+ * In two-stage mode a script is first parsed with SLL prediction, which is
+ * much cheaper on the left-recursive expr rule, and stops at the first
+ * syntax error.  Only if that fails is it parsed again with full LL
+ * prediction and the usual error reporting and recovery, so the result is
+ * the same as for a plain LL parse.
+ *
+ * Instances are not thread-safe; use one per thread.
+ */
+public class ScriptParser {
+    private final FeatherweightJavaScriptLexer lexer;
+    private final CommonTokenStream tokens;
+    private final FeatherweightJavaScriptParser parser;
+    private final ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
+    private boolean twoStage;
+
+    public ScriptParser() {
+        lexer = new FeatherweightJavaScriptLexer(CharStreams.fromString(""));
+        tokens = new CommonTokenStream(lexer);
+        parser = new FeatherweightJavaScriptParser(tokens);
+    }
+
+    /**
+     * Selects SLL-then-LL parsing instead of always using LL.
+     */
+    public void setTwoStage(boolean twoStage) {
+        this.twoStage = twoStage;
+    }
+
+    /**
+     * Number of syntax errors reported by the last parse.
+     */
+    public int getSyntaxErrors() {
+        return parser.getNumberOfSyntaxErrors();
+    }
+
+    public Expression parse(String source) {
+        return parse(CharStreams.fromString(source));
+    }
+
+    public Expression parse(CharStream input) {
+        lexer.setInputStream(input);
+        tokens.setTokenSource(lexer);
+        parser.setTokenStream(tokens);
+
+        ParseTree tree = null;
+        if (twoStage) {
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.removeErrorListeners();
+            parser.setErrorHandler(new BailErrorStrategy());
+            try {
+                tree = parser.prog();
+            } catch (ParseCancellationException e) {
+                // Either a real syntax error or SLL was not enough: redo it with LL.
+                tokens.seek(0);
+                parser.reset();
+            }
+        }
+        if (tree == null) {
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.removeErrorListeners();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            tree = parser.prog();
+        }
+        return builder.visit(tree);
+    }
+}
@@ -0,0 +1,31 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Thrown at a loop or a call when the script has used up its Fuel,
+ * or when the Fuel was cancelled from another thread.
+ */
+public class ScriptStoppedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final boolean cancelled;
+
+    ScriptStoppedException(boolean cancelled, long used) {
+        super((cancelled ? "Cancelled" : "Out of fuel") + " after " + used + " steps");
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Whether the script was cancelled, rather than out of fuel.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Where in the interpreter the script happened to stop says nothing
+     * about the script, so skip the stack trace.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,373 @@
+package edu.sjsu.fwjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the state left behind by a prelude, so that a later launch can
+ * pick it up without parsing or running the prelude again.
+ *
+ * A snapshot holds the prelude's expression tree, in the ScriptCache
+ * format, and every Environment reachable from its globals: the frame
+ * layout, the variables, and the closures with the variables they
+ * captured, including the Cells that closures share.
+ * Loading it reads the tree back, resolves it again (which gives the same
+ * layouts), and rebuilds the environments around it.  None of this needs
+ * the parser, so the ANTLR lexer and parser are not even loaded unless
+ * other source has to be parsed.
+ *
+ * Like a ScriptCache entry, a snapshot is tied to the SHA-256 of the
+ * prelude source; a stale or damaged file is ignored.
+ */
+public class Snapshot {
+    static final int MAGIC = 0x46574a53; // "FWJS"
+    static final int VERSION = 5;
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 32 + 4 + 4;
+    // Tags of the values in environments.
+    private static final int UNSET = 0;
+    private static final int NULL_VAL = 1;
+    private static final int INT_VAL = 2;
+    private static final int BOOL_VAL = 3;
+    private static final int CLOSURE = 4;
+    private static final int CELL = 5;
+    // Scope references: the global scope, none, the index of a function
+    // for its frame, or the number of functions plus the index for its
+    // captures.
+    private static final int GLOBAL_SCOPE = -1;
+    private static final int NO_SCOPE = -2;
+
+    private final Path file;
+
+    public Snapshot(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the frozen globals saved for this prelude source,
+     * or null if the snapshot is missing, stale or unreadable.
+     */
+    public Environment load(ByteBuffer source, boolean optimized) {
+        if (!Files.isReadable(file)) return null;
+        byte[] hash = ScriptCache.hash(source);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_SIZE
+                    || in.getInt() != MAGIC
+                    || in.getShort() != VERSION
+                    || in.get() != (optimized ? 1 : 0))
+                return null;
+            byte[] entryHash = new byte[hash.length];
+            in.get(entryHash);
+            int length = in.getInt();
+            int crc = in.getInt();
+            if (!Arrays.equals(hash, entryHash) || length != in.remaining())
+                return null;
+            CRC32 check = new CRC32();
+            check.update(in.duplicate());
+            if ((int) check.getValue() != crc)
+                return null;
+            Environment globals = new Reader(in).read();
+            return in.hasRemaining() ? null : globals;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the globals that running the resolved prelude tree left behind.
+     * Failing to write only means the next launch runs the prelude again.
+     */
+    public void store(ByteBuffer source, boolean optimized, Expression prelude, Environment globals) {
+        byte[] hash = ScriptCache.hash(source);
+        try {
+            byte[] body = new Writer(prelude).write(globals);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + body.length);
+            out.putInt(MAGIC).putShort((short) VERSION).put((byte) (optimized ? 1 : 0))
+                    .put(hash).putInt(body.length).putInt((int) crc.getValue()).put(body);
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, "fwjs", ".tmp");
+            Files.write(tmp, out.array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | IllegalArgumentException e) {
+            // Leave the old snapshot, if any.
+        }
+    }
+
+    /**
+     * The function declarations of the tree, in pre-order.
+     * Closures and frames refer to functions by their index in this list.
+     */
+    private static List<FunctionDeclExpr> functions(Expression prog) {
+        final List<FunctionDeclExpr> decls = new ArrayList<FunctionDeclExpr>();
+        prog.accept(new ExpressionBaseVisitor<Void>() {
+            @Override
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                decls.add(e);
+                return super.visitFunctionDecl(e);
+            }
+        });
+        return decls;
+    }
+
+    private static class Writer {
+        private final Expression prelude;
+        private final Map<FunctionDeclExpr,Integer> functions = new IdentityHashMap<>();
+        private final Map<Scope,Integer> scopes = new IdentityHashMap<>();
+        private final Map<Environment,Integer> ids = new IdentityHashMap<>();
+        private final Map<Cell,Integer> cellIds = new IdentityHashMap<>();
+        private final List<Cell> cells = new ArrayList<Cell>();
+        // Every environment comes after its outer one.
+        private final List<Environment> envs = new ArrayList<Environment>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Writer(Expression prelude) {
+            this.prelude = prelude;
+            List<FunctionDeclExpr> decls = functions(prelude);
+            for (int i = 0; i < decls.size(); i++) {
+                functions.put(decls.get(i), i);
+                if (decls.get(i).getScope() != null)
+                    scopes.put(decls.get(i).getScope(), i);
+                if (decls.get(i).getCaptures() != null)
+                    scopes.put(decls.get(i).getCaptures(), decls.size() + i);
+            }
+        }
+
+        byte[] write(Environment globals) throws IOException {
+            if (globals.getOuter() != null || globals.getBase() != null)
+                throw new IllegalArgumentException("Not a standalone global environment");
+            if (globals.getScope() != null)
+                scopes.put(globals.getScope(), GLOBAL_SCOPE);
+            register(globals);
+            // Closures found in the variables add more environments as we go.
+            for (int i = 0; i < envs.size(); i++)
+                scan(envs.get(i));
+
+            byte[] tree = TreeWriter.toBytes(prelude);
+            out.writeInt(tree.length);
+            out.write(tree);
+            out.writeInt(envs.size());
+            for (Environment e : envs) {
+                out.writeInt(e.getOuter() == null ? -1 : ids.get(e.getOuter()));
+                out.writeInt(scopeRef(e.getScope()));
+            }
+            // Cells come last, as they may hold closures of any environment.
+            out.writeInt(cells.size());
+            for (Environment e : envs) {
+                Value[] slots = e.getSlots();
+                out.writeInt(slots == null ? -1 : slots.length);
+                if (slots != null)
+                    for (Value v : slots)
+                        value(v);
+                Map<String,Value> vars = e.getVars();
+                out.writeInt(vars == null ? -1 : vars.size());
+                if (vars != null) {
+                    for (Map.Entry<String,Value> var : vars.entrySet()) {
+                        string(var.getKey());
+                        value(var.getValue());
+                    }
+                }
+            }
+            for (Cell cell : cells) {
+                value(cell.value);
+                value(cell.fallback);
+            }
+            return bytes.toByteArray();
+        }
+
+        private int register(Environment e) {
+            Integer id = ids.get(e);
+            if (id != null) return id;
+            if (e.getOuter() != null) register(e.getOuter());
+            ids.put(e, envs.size());
+            envs.add(e);
+            return envs.size() - 1;
+        }
+
+        private void scan(Environment e) {
+            if (e.getSlots() != null)
+                for (Value v : e.getSlots())
+                    scan(v);
+            if (e.getVars() != null)
+                for (Value v : e.getVars().values())
+                    scan(v);
+        }
+
+        private void scan(Value v) {
+            if (v instanceof Cell && !cellIds.containsKey(v)) {
+                cellIds.put((Cell) v, cells.size());
+                cells.add((Cell) v);
+                scan(((Cell) v).value);
+                scan(((Cell) v).fallback);
+            }
+            if (!(v instanceof ClosureVal)) return;
+            ClosureVal closure = (ClosureVal) v;
+            if (closure.getDecl() == null || !functions.containsKey(closure.getDecl()))
+                throw new IllegalArgumentException("Cannot save " + closure);
+            register(closure.getEnv());
+        }
+
+        private int scopeRef(Scope scope) {
+            if (scope == null) return NO_SCOPE;
+            Integer ref = scopes.get(scope);
+            if (ref == null)
+                throw new IllegalArgumentException("Frame of an unknown function");
+            return ref;
+        }
+
+        private void value(Value v) throws IOException {
+            if (v == null) {
+                out.writeByte(UNSET);
+            } else if (v instanceof IntVal) {
+                out.writeByte(INT_VAL);
+                out.writeInt(((IntVal) v).toInt());
+            } else if (v instanceof BoolVal) {
+                out.writeByte(BOOL_VAL);
+                out.writeBoolean(((BoolVal) v).toBoolean());
+            } else if (v instanceof NullVal) {
+                out.writeByte(NULL_VAL);
+            } else if (v instanceof ClosureVal) {
+                ClosureVal closure = (ClosureVal) v;
+                out.writeByte(CLOSURE);
+                out.writeInt(functions.get(closure.getDecl()));
+                out.writeInt(ids.get(closure.getEnv()));
+            } else if (v instanceof Cell) {
+                out.writeByte(CELL);
+                out.writeInt(cellIds.get(v));
+            } else {
+                throw new IllegalArgumentException("Cannot save " + v);
+            }
+        }
+
+        private void string(String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private List<FunctionDeclExpr> functions;
+        private Environment[] envs;
+        private Cell[] cells;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        Environment read() {
+            int treeLength = readCount();
+            ByteBuffer treeBytes = in.duplicate();
+            treeBytes.limit(treeBytes.position() + treeLength);
+            Expression prelude = new TreeReader(treeBytes).read();
+            if (treeBytes.hasRemaining())
+                throw new IllegalArgumentException("Bad tree");
+            in.position(in.position() + treeLength);
+            Resolver resolver = new Resolver();
+            resolver.resolve(prelude);
+            functions = functions(prelude);
+
+            envs = new Environment[readCount()];
+            for (int i = 0; i < envs.length; i++) {
+                int outer = in.getInt();
+                if (outer >= i)
+                    throw new IllegalArgumentException("Bad outer frame " + outer);
+                Environment outerEnv = outer < 0 ? null : envs[outer];
+                int ref = in.getInt();
+                Scope scope = ref == NO_SCOPE ? null
+                        : ref == GLOBAL_SCOPE ? resolver.getGlobalScope()
+                        : ref >= functions.size() ? functions.get(ref - functions.size()).getCaptures()
+                        : functions.get(ref).getScope();
+                envs[i] = scope == null ? new Environment(outerEnv) : new Environment(outerEnv, scope);
+            }
+            cells = new Cell[readCount()];
+            for (int i = 0; i < cells.length; i++)
+                cells[i] = new Cell();
+            for (Environment e : envs) {
+                int n = in.getInt();
+                Value[] slots = null;
+                if (n >= 0) {
+                    slots = new Value[Math.min(n, in.remaining())];
+                    if (slots.length != n)
+                        throw new IllegalArgumentException("Bad length " + n);
+                    for (int i = 0; i < n; i++)
+                        slots[i] = value();
+                }
+                n = in.getInt();
+                Map<String,Value> vars = null;
+                if (n >= 0) {
+                    vars = new HashMap<String,Value>();
+                    for (int i = 0; i < n; i++) {
+                        String name = string();
+                        vars.put(name, value());
+                    }
+                }
+                if (e.getScope() != null && (slots == null || slots.length < e.getScope().size()))
+                    throw new IllegalArgumentException("Frame does not match its layout");
+                e.restore(slots, vars);
+            }
+            for (Cell cell : cells) {
+                cell.value = value();
+                if (cell.value instanceof Cell)
+                    throw new IllegalArgumentException("Cell in a cell");
+                cell.fallback = value();
+            }
+            Environment globals = envs[0];
+            if (globals.getOuter() != null)
+                throw new IllegalArgumentException("No global environment");
+            globals.freeze();
+            return globals;
+        }
+
+        private Value value() {
+            int tag = in.get();
+            switch (tag) {
+            case UNSET:		return null;
+            case NULL_VAL:	return new NullVal();
+            case INT_VAL:	return new IntVal(in.getInt());
+            case BOOL_VAL:	return BoolVal.valueOf(in.get() != 0);
+            case CLOSURE: {
+                FunctionDeclExpr decl = functions.get(in.getInt());
+                return new ClosureVal(decl, envs[in.getInt()]);
+            }
+            case CELL:		return cells[in.getInt()];
+            default:
+                throw new IllegalArgumentException("Bad value tag " + tag);
+            }
+        }
+
+        private int readCount() {
+            int n = in.getInt();
+            if (n < 0 || n > in.remaining())
+                throw new IllegalArgumentException("Bad length " + n);
+            return n;
+        }
+
+        private String string() {
+            byte[] b = new byte[readCount()];
+            in.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.sjsu.fwjs;
+
+import java.io.Reader;
+
+import org.antlr.v4.runtime.*;
+
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptLexer;
+import edu.sjsu.fwjs.parser.FeatherweightJavaScriptParser;
+
+/**
+ * Parses a script one top-level statement at a time.
+ * Characters and tokens go through ANTLR's unbuffered streams, which only
+ * hold the lookahead of the statement being parsed, and each statement's
+ * parse tree is dropped once its expression tree has been built.  Memory
+ * therefore does not grow with the length of the input, and a statement
+ * can be run as soon as it is complete, e.g. while reading a live stdin.
+ */
+public class StatementStream {
+    private final UnbufferedTokenStream<Token> tokens;
+    private final FeatherweightJavaScriptParser parser;
+    private final ExpressionBuilderVisitor builder = new ExpressionBuilderVisitor();
+
+    public StatementStream(Reader in) {
+        FeatherweightJavaScriptLexer lexer = new FeatherweightJavaScriptLexer(new UnbufferedCharStream(in));
+        // The char stream forgets the input, so tokens must keep their own text.
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        tokens = new LazyTokenStream(lexer);
+        parser = new FeatherweightJavaScriptParser(tokens);
+    }
+
+    /**
+     * Returns the next statement, or null at the end of the input.
+     * Reads no further than needed to finish that statement.
+     * Throws an IllegalArgumentException if the statement has syntax errors.
+     */
+    public Expression next() {
+        while (tokens.LA(1) != Token.EOF) {
+            int start = tokens.index();
+            int line = tokens.LT(1).getLine();
+            int errors = parser.getNumberOfSyntaxErrors();
+            Expression stat = builder.visit(parser.stat());
+            // Error recovery may stop before the bad token; skip it.
+            if (tokens.index() == start) tokens.consume();
+            if (parser.getNumberOfSyntaxErrors() > errors)
+                throw new IllegalArgumentException("Syntax errors in the statement at line " + line);
+            if (stat != null) return stat; // null for an empty statement
+        }
+        return null;
+    }
+
+    /**
+     * UnbufferedTokenStream reads the token after the one it consumes.
+     * At the end of a statement that would wait for the next line of a live
+     * input before the statement could run, so the read is put off until
+     * the parser actually looks ahead.
+     */
+    private static class LazyTokenStream extends UnbufferedTokenStream<Token> {
+        private boolean consuming;
+
+        LazyTokenStream(TokenSource source) {
+            super(source);
+        }
+
+        @Override
+        public void consume() {
+            consuming = true;
+            try {
+                super.consume();
+            } finally {
+                consuming = false;
+            }
+        }
+
+        @Override
+        protected void sync(int want) {
+            if (!consuming) super.sync(want);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * Thrown by Expression.evaluateInt/evaluateBoolean when the expression
+ * produced a value of another type.
+ * The value is kept, so a caller can fall back to a generic path
+ * without evaluating the expression (and its side effects) again.
+ * Where the value really had to be of that type, e.g. in the condition
+ * of an if, the caller reports it with asCastError instead, so that the
+ * error is a plain ClassCastException with a stack trace, like a cast.
+ */
+class UnexpectedResultException extends ClassCastException {
+    private static final long serialVersionUID = 1L;
+    private final Value result;
+
+    public UnexpectedResultException(Value result) {
+        super("Unexpected value: " + result);
+        this.result = result;
+    }
+
+    public Value getResult() {
+        return result;
+    }
+
+    /**
+     * The error for a result that is not of the expected type.
+     */
+    ClassCastException asCastError(Class<? extends Value> expected) {
+        return castError(result, expected);
+    }
+
+    static ClassCastException castError(Value v, Class<? extends Value> expected) {
+        ClassCastException e = new ClassCastException("class " + v.getClass().getName()
+                + " cannot be cast to class " + expected.getName());
+        // Start the trace where the value was used, as for a failed cast.
+        StackTraceElement[] trace = e.getStackTrace();
+        int i = 0;
+        while (i < trace.length - 1 && trace[i].getClassName().equals(UnexpectedResultException.class.getName()))
+            i++;
+        e.setStackTrace(Arrays.copyOfRange(trace, i, trace.length));
+        return e;
+    }
+
+    /**
+     * Used for control flow on the fast paths, so skip the stack trace.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
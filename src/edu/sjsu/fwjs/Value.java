@@ -15,8 +15,17 @@ public interface Value {}
  * Boolean values.
  */
 class BoolVal implements Value {
+    static final BoolVal TRUE = new BoolVal(true);
+    static final BoolVal FALSE = new BoolVal(false);
     private boolean boolVal;
-    public BoolVal(boolean b) { this.boolVal = b; }
+    public BoolVal(boolean b) {
+        if (Metrics.ENABLED) Metrics.boolVals.increment();
+        this.boolVal = b;
+    }
+    /**
+     * Boxes a boolean without allocating.
+     */
+    static BoolVal valueOf(boolean b) { return b ? TRUE : FALSE; }
     public boolean toBoolean() { return this.boolVal; }
     @Override
     public boolean equals(Object that) {
@@ -34,7 +43,10 @@ class BoolVal implements Value {
  */
 class IntVal implements Value {
     private int i;
-    public IntVal(int i) { this.i = i; }
+    public IntVal(int i) {
+        if (Metrics.ENABLED) Metrics.intVals.increment();
+        this.i = i;
+    }
     public int toInt() { return this.i; }
     @Override
     public boolean equals(Object that) {
@@ -48,6 +60,9 @@ class IntVal implements Value {
 }
 
 class NullVal implements Value {
+    NullVal() {
+        if (Metrics.ENABLED) Metrics.nullVals.increment();
+    }
     @Override
     public boolean equals(Object that) {
         return (that instanceof NullVal);
@@ -66,14 +81,68 @@ class ClosureVal implements Value {
     private List<String> params;
     private Expression body;
     private Environment outerEnv;
+    // Frame layout from the Resolver; null for unresolved function bodies.
+    private Scope scope;
+    private int[] paramSlots;
+    // Declaration the closure was created from by the tree walker, for tier-up.
+    private FunctionDeclExpr decl;
     /**
      * The environment is the environment where the function was created.
      * This design is what makes this expression a closure.
      */
     public ClosureVal(List<String> params, Expression body, Environment env) {
+        this(params, body, env, null, null);
+    }
+    ClosureVal(List<String> params, Expression body, Environment env,
+            Scope scope, int[] paramSlots) {
+        if (Metrics.ENABLED) Metrics.closures.increment();
         this.params = params;
         this.body = body;
         this.outerEnv = env;
+        this.scope = scope;
+        this.paramSlots = paramSlots;
+    }
+    ClosureVal(FunctionDeclExpr decl, Environment env) {
+        this(decl.getParams(), decl.getBody(), env, decl.getScope(), decl.getParamSlots());
+        this.decl = decl;
+    }
+    /**
+     * The same function, made in another environment.
+     */
+    ClosureVal withEnv(Environment env) {
+        ClosureVal c = new ClosureVal(params, body, env, scope, paramSlots);
+        c.decl = decl;
+        return c;
+    }
+    FunctionDeclExpr getDecl() {
+        return decl;
+    }
+    /**
+     * The body of the function compiled by the HotFunctionCompiler, or
+     * null while it is interpreted.
+     */
+    CompiledBody getCompiled() {
+        return decl != null ? decl.getCompiled() : null;
+    }
+    Environment getEnv() {
+        return outerEnv;
+    }
+    /**
+     * What an inline cache (see CallNode) remembers of the closure:
+     * closures with the same template have the same parameters and
+     * frame layout.  Null for closures of functions that were never resolved.
+     */
+    Object getTemplate() {
+        return scope == null ? null : decl;
+    }
+    List<String> getParams() {
+        return params;
+    }
+    int[] getParamSlots() {
+        return paramSlots;
+    }
+    int getArity() {
+        return params.size();
     }
     public String toString() {
         String s = "function(";
@@ -91,16 +160,300 @@ class ClosureVal implements Value {
      * be bound to its matching argument and added to the new local environment.
      */
     public Value apply(List<Value> argVals) {
-        Environment newEnv = new Environment(outerEnv);
-        //System.out.println("Args val size :" + argVals);
-        //System.out.println("Params val size: " + params);
-        for(int i = 1; i < argVals.size(); i++)
-        {
-            //System.out.println(argVals.get(i));
-            //System.out.println(params.get(i));
-            newEnv.updateVar(params.get(i - 1), argVals.get(i));
+        return call(argVals.toArray(new Value[0]));
+    }
+    // Calls with a fixed number of arguments, which need no list or array.
+    // Frames that cannot escape come from the FramePool.
+    public Value call() {
+        if (!hasPooledFrames()) return invoke(newFrame());
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        try {
+            return invoke(newFrame(pool));
+        } finally {
+            pool.release(mark);
+        }
+    }
+    public Value call(Value a) {
+        if (!hasPooledFrames()) return invoke(newFrame(a));
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        try {
+            return invoke(bind(newFrame(pool), a));
+        } finally {
+            pool.release(mark);
+        }
+    }
+    public Value call(Value a, Value b) {
+        if (!hasPooledFrames()) return invoke(newFrame(a, b));
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        try {
+            return invoke(bind(newFrame(pool), a, b));
+        } finally {
+            pool.release(mark);
+        }
+    }
+    public Value call(Value a, Value b, Value c) {
+        if (!hasPooledFrames()) return invoke(newFrame(a, b, c));
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        try {
+            return invoke(bind(newFrame(pool), a, b, c));
+        } finally {
+            pool.release(mark);
+        }
+    }
+    public Value call(Value a, Value b, Value c, Value d) {
+        if (!hasPooledFrames()) return invoke(newFrame(a, b, c, d));
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        try {
+            return invoke(bind(newFrame(pool), a, b, c, d));
+        } finally {
+            pool.release(mark);
+        }
+    }
+    public Value call(Value... args) {
+        if (!hasPooledFrames()) return invoke(newFrame(args));
+        FramePool pool = FramePool.current();
+        int mark = pool.mark();
+        try {
+            return invoke(bind(newFrame(pool), args));
+        } finally {
+            pool.release(mark);
+        }
+    }
+    /**
+     * Runs a call whose arguments are already bound in the new frame.
+     *
+     * Calls in tail position come back as a TailCall, with the frame of
+     * the callee ready, and are run by the loop here, so they do not use
+     * any Java stack.  A tail call's frame may come from the FramePool;
+     * the loop keeps the frame of the tail call it runs in one slot of the
+     * pool, and a later pooled tail call takes over that slot, since the
+     * frame of the call before is no longer used.  A tail call that can run
+     * in the frame of its caller reuses it instead (see runsIn).
+     */
+    Value invoke(Environment newEnv) {
+        ClosureVal closure = this;
+        Profiler.Track track = Profiler.enabled ? Profiler.track() : null;
+        Profiler.Frame caller = track == null ? null : track.enter(closure.getDecl());
+        Fuel fuel = Fuel.enabled ? Fuel.current() : null;
+        FramePool pool = null;
+        // The pool slot of the running tail call's frame, if it is pooled.
+        int tailSlot = -1;
+        try {
+            for (;;) {
+                if (Metrics.ENABLED) Metrics.calls.increment();
+                if (fuel != null) fuel.charge();
+                Value result = closure.run(newEnv);
+                if (!(result instanceof TailCall))
+                    return result;
+                TailCall call = (TailCall) result;
+                // The tail call replaces its caller, in the profile too.
+                if (track != null && call.closure != closure)
+                    track.replace(call.closure.getDecl());
+                if (call.frame == newEnv) {
+                    // The call reuses the frame it was made from; its pool slot, if any, stays.
+                } else if (call.pool != null) {
+                    pool = call.pool;
+                    if (tailSlot < 0)
+                        tailSlot = pool.mark() - 1;
+                    else
+                        pool.replace(tailSlot);
+                } else if (tailSlot >= 0) {
+                    pool.release(tailSlot);
+                    tailSlot = -1;
+                }
+                closure = call.closure;
+                newEnv = call.frame;
+            }
+        } finally {
+            if (track != null) track.exit(caller);
+            if (tailSlot >= 0) pool.release(tailSlot);
+        }
+    }
+    private Value run(Environment newEnv) {
+        if (decl != null) {
+            CompiledBody compiled = decl.tierUp();
+            if (compiled != null)
+                return compiled.invoke(newEnv);
         }
-        //outerEnv = newEnv; //Nick: should be keeping the outerEnv i think??
         return body.evaluate(newEnv); //Nick: return the evaluated body with reference to the new environment, not this
     }
+    /**
+     * Creates the (empty) local environment for one call.
+     */
+    Environment newFrame() {
+        return scope == null
+                ? new Environment(outerEnv)
+                : new Environment(outerEnv, scope);
+    }
+    /**
+     * Takes the local environment for one call from the pool.
+     * Only for closures that have pooled frames; the caller releases it.
+     */
+    Environment newFrame(FramePool pool) {
+        return pool.acquire(outerEnv, scope);
+    }
+    /**
+     * Whether the frames of this closure's calls can be reused (see
+     * FramePool).  Closures never keep a resolved frame, only the Cells
+     * in it, so a resolved frame cannot outlive its call.
+     */
+    boolean hasPooledFrames() {
+        return scope != null;
+    }
+    /**
+     * Reuses a frame of an earlier call, which the caller made sure is
+     * no longer referred to, for a new call.
+     */
+    void resetFrame(Environment frame) {
+        frame.reset(outerEnv, scope);
+    }
+    /**
+     * Whether a call of this closure can run in the given frame: a frame
+     * of the same function, made in the same environment.  A call in tail
+     * position of that frame, once its arguments are evaluated, reuses the
+     * frame (see tailFrame), so a function looping by calling itself needs
+     * no new frame per iteration.
+     */
+    boolean runsIn(Environment frame) {
+        return scope != null && frame.getScope() == scope && frame.getOuter() == outerEnv;
+    }
+    /**
+     * The frame for a call in tail position of the running frame caller:
+     * caller itself, cleared, if the call can run in it, else a new one.
+     * The arguments must be evaluated before the frame is reused.
+     */
+    Environment tailFrame(Environment caller) {
+        if (!runsIn(caller)) return newFrame();
+        if (Metrics.ENABLED) Metrics.framesReused.increment();
+        caller.clear();
+        resetFrame(caller);
+        return caller;
+    }
+    Environment tailFrame(Environment caller, Value a) {
+        return bind(tailFrame(caller), a);
+    }
+    Environment tailFrame(Environment caller, Value a, Value b) {
+        return bind(tailFrame(caller), a, b);
+    }
+    Environment tailFrame(Environment caller, Value a, Value b, Value c) {
+        return bind(tailFrame(caller), a, b, c);
+    }
+    Environment tailFrame(Environment caller, Value a, Value b, Value c, Value d) {
+        return bind(tailFrame(caller), a, b, c, d);
+    }
+    Environment tailFrame(Environment caller, Value[] args) {
+        return bind(tailFrame(caller), args);
+    }
+    Environment newFrame(Value a) {
+        return bind(newFrame(), a);
+    }
+    Environment newFrame(Value a, Value b) {
+        return bind(newFrame(), a, b);
+    }
+    Environment newFrame(Value a, Value b, Value c) {
+        return bind(newFrame(), a, b, c);
+    }
+    Environment newFrame(Value a, Value b, Value c, Value d) {
+        return bind(newFrame(), a, b, c, d);
+    }
+    Environment newFrame(Value[] args) {
+        return bind(newFrame(), args);
+    }
+    private Environment bind(Environment frame, Value a) {
+        bindParam(frame, 0, a);
+        return frame;
+    }
+    private Environment bind(Environment frame, Value a, Value b) {
+        bindParam(frame, 0, a);
+        bindParam(frame, 1, b);
+        return frame;
+    }
+    private Environment bind(Environment frame, Value a, Value b, Value c) {
+        bindParam(frame, 0, a);
+        bindParam(frame, 1, b);
+        bindParam(frame, 2, c);
+        return frame;
+    }
+    private Environment bind(Environment frame, Value a, Value b, Value c, Value d) {
+        bindParam(frame, 0, a);
+        bindParam(frame, 1, b);
+        bindParam(frame, 2, c);
+        bindParam(frame, 3, d);
+        return frame;
+    }
+    private Environment bind(Environment frame, Value[] args) {
+        for (int i = 0; i < args.length; i++)
+            bindParam(frame, i, args[i]);
+        return frame;
+    }
+    void bindParam(Environment frame, int i, Value v) {
+        int slot = paramSlots == null ? -1 : paramSlots[i];
+        frame.bindParam(slot, params.get(i), v);
+    }
+}
+
+/**
+ * A call in tail position, returned to the ClosureVal.invoke that runs it.
+ * Never visible to FWJS code.
+ */
+final class TailCall implements Value {
+    final ClosureVal closure;
+    // The callee's frame, with the arguments bound.
+    final Environment frame;
+    // The pool the frame was taken from, or null for a new frame.
+    final FramePool pool;
+    TailCall(ClosureVal closure, Environment frame) {
+        this(closure, frame, null);
+    }
+    TailCall(ClosureVal closure, Environment frame, FramePool pool) {
+        this.closure = closure;
+        this.frame = frame;
+        this.pool = pool;
+    }
+}
+
+/**
+ * A variable that closures share with the frame that declares it, and
+ * with each other.  Captured variables that can change after a closure
+ * is made live in a Cell, so that every closure sees the change; see
+ * FunctionDeclExpr.capture.  Never visible to FWJS code.
+ */
+final class Cell implements Value {
+    // Null until the variable is declared.
+    Value value;
+    // For a variable that shadows one of an enclosing function: that one,
+    // as its Cell or a copy of its value.  Until the variable is declared,
+    // its name still means that one, as with a lookup by name.
+    Value fallback;
+
+    /**
+     * The value of the variable, or of the one it shadows while it is
+     * not declared.  Null if neither is declared.
+     */
+    Value get() {
+        Cell c = this;
+        while (c.value == null) {
+            if (!(c.fallback instanceof Cell)) return c.fallback;
+            c = (Cell) c.fallback;
+        }
+        return c.value;
+    }
+
+    /**
+     * The Cell that an assignment writes to: this one, or while it is not
+     * declared the one it shadows.  Null if neither is declared.
+     */
+    Cell declared() {
+        Cell c = this;
+        while (c.value == null) {
+            if (!(c.fallback instanceof Cell)) return null;
+            c = (Cell) c.fallback;
+        }
+        return c;
+    }
 }
@@ -2,9 +2,22 @@ package edu.sjsu.fwjs;
 
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
 import org.junit.Test;
 
 public class ExpressionTest {
@@ -208,5 +221,841 @@ public class ExpressionTest {
             fail();
         } catch (Exception e) {}
     }
-}
+    
+    @Test
+    // x=112358; (function() { var x=42; x; })(); x;  /* resolved to slots */
+    public void testResolvedScope() {
+        VarDeclExpr newVar = new VarDeclExpr("x", new ValueExpr(new IntVal(112358)));
+        FunctionDeclExpr f = new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new VarDeclExpr("x", new ValueExpr(new IntVal(42))),
+                        new VarExpr("x")));
+        SeqExpr seq = new SeqExpr(new SeqExpr(newVar,
+                new FunctionAppExpr(f, new ArrayList<Expression>())),
+                new VarExpr("x"));
+        Resolver resolver = new Resolver();
+        resolver.resolve(seq);
+        Environment env = resolver.newGlobalEnvironment();
+        assertEquals(new IntVal(112358), seq.evaluate(env));
+        assertEquals(new IntVal(112358), env.resolveVar("x"));
+    }
+    
+    @Test
+    // var x=1; (function() { var y=x; var x=2; y; })();  /* read before local var */
+    public void testResolvedReadBeforeDecl() {
+        VarDeclExpr newVar = new VarDeclExpr("x", new ValueExpr(new IntVal(1)));
+        FunctionDeclExpr f = new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new SeqExpr(new VarDeclExpr("y", new VarExpr("x")),
+                        new VarDeclExpr("x", new ValueExpr(new IntVal(2)))),
+                        new VarExpr("y")));
+        SeqExpr seq = new SeqExpr(newVar, new FunctionAppExpr(f, new ArrayList<Expression>()));
+        Resolver resolver = new Resolver();
+        resolver.resolve(seq);
+        assertEquals(new IntVal(1), seq.evaluate(resolver.newGlobalEnvironment()));
+    }
+    
+    @Test
+    // (function() { x=42; })(); x;  /* assignment to an undeclared name is global */
+    public void testResolvedAssignGlobal() {
+        FunctionDeclExpr f = new FunctionDeclExpr(new ArrayList<String>(),
+                new AssignExpr("x", new ValueExpr(new IntVal(42))));
+        SeqExpr seq = new SeqExpr(new FunctionAppExpr(f, new ArrayList<Expression>()),
+                new VarExpr("x"));
+        Resolver resolver = new Resolver();
+        resolver.resolve(seq);
+        Environment env = resolver.newGlobalEnvironment();
+        assertEquals(new IntVal(42), seq.evaluate(env));
+        assertEquals(new IntVal(42), env.resolveVar("x"));
+    }
+    
+    @Test
+    // (2 * 3 + 4 > 9) evaluated without boxing intermediate values
+    public void testUnboxedBinOpExpr() {
+        Environment env = new Environment();
+        BinOpExpr sum = new BinOpExpr(Op.ADD,
+                new BinOpExpr(Op.MULTIPLY,
+                        new ValueExpr(new IntVal(2)),
+                        new ValueExpr(new IntVal(3))),
+                new ValueExpr(new IntVal(4)));
+        BinOpExpr cmp = new BinOpExpr(Op.GT, sum, new ValueExpr(new IntVal(9)));
+        assertEquals(10, sum.evaluateInt(env));
+        assertTrue(cmp.evaluateBoolean(env));
+        assertEquals(new BoolVal(true), cmp.evaluate(env));
+    }
+    
+    @Test
+    // x == 1 specializes on ints, then falls back when x becomes null
+    public void testBinOpSpecialization() {
+        Environment env = new Environment();
+        BinOpExpr eq = new BinOpExpr(Op.EQ, new VarExpr("x"), new ValueExpr(new IntVal(1)));
+        assertTrue(eq.getNode() instanceof UninitializedBinOpNode);
+        env.updateVar("x", new IntVal(1));
+        assertEquals(new BoolVal(true), eq.evaluate(env));
+        assertTrue(eq.getNode() instanceof IntEqualNode);
+        env.updateVar("x", new NullVal());
+        assertFalse(eq.evaluateBoolean(env));
+        assertTrue(eq.getNode() instanceof GenericBinOpNode);
+        env.updateVar("x", new IntVal(1));
+        assertTrue(eq.evaluateBoolean(env));
+    }
+
+    @Test
+    // A condition that is not a boolean is a type error, even on the unboxed paths
+    public void testConditionTypeError() {
+        Environment env = new Environment();
+        env.updateVar("c", new BoolVal(true));
+        BinOpExpr sum = new BinOpExpr(Op.ADD,
+                new IfExpr(new VarExpr("c"), new ValueExpr(new IntVal(2)), new ValueExpr(new IntVal(3))),
+                new ValueExpr(new IntVal(1)));
+        assertEquals(new IntVal(3), sum.evaluate(env));
+        assertTrue(sum.getNode() instanceof IntAddNode);
+        env.updateVar("c", new IntVal(7));
+        Expression[] bad = { sum, new WhileExpr(new VarExpr("c"), new ValueExpr(new NullVal())) };
+        for (Expression e : bad) {
+            try {
+                e.evaluate(env);
+                fail();
+            } catch (ClassCastException ex) {
+                assertFalse(ex instanceof UnexpectedResultException);
+                assertTrue(ex.getMessage().contains("BoolVal"));
+                assertTrue(ex.getStackTrace().length > 0);
+            }
+        }
+    }
+    
+    @Test
+    public void testHotFunctionCompiler() {
+        List<String> params = new ArrayList<String>();
+        params.add("x");
+        Expression body = new SeqExpr(new SeqExpr(
+                new VarDeclExpr("y", new ValueExpr(new IntVal(1))),
+                new WhileExpr(new BinOpExpr(Op.GT, new VarExpr("x"), new ValueExpr(new IntVal(1))),
+                        new SeqExpr(
+                                new AssignExpr("y", new BinOpExpr(Op.MULTIPLY, new VarExpr("y"), new VarExpr("x"))),
+                                new AssignExpr("x", new BinOpExpr(Op.SUBTRACT, new VarExpr("x"), new ValueExpr(new IntVal(1))))))),
+                new VarExpr("y"));
+        FunctionDeclExpr f = new FunctionDeclExpr(params, body);
+        new Resolver().resolve(f);
+        ClosureVal closure = (ClosureVal) f.evaluate(new Environment());
+        List<Value> args = new ArrayList<Value>();
+        args.add(new IntVal(5));
+        HotFunctionCompiler.setThreshold(2);
+        try {
+            assertEquals(new IntVal(120), closure.apply(args));
+            assertNotNull(f.tierUp());
+            assertEquals(new IntVal(120), closure.apply(args));
+        } finally {
+            HotFunctionCompiler.setThreshold(0);
+        }
+
+        // Compiled functions call each other directly, and read captured
+        // variables and globals from their slots; every call is still a step.
+        Expression prog = new ScriptParser().parse(
+                "var step = 1;"
+                + "var mk = function(d) { function(n) { if (n < 2) n + d; else (fib(n - step)) + (fib(n - 2)); }; };"
+                + "var fib = mk(1); fib(15);");
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Fuel interpreted = Fuel.unlimited();
+        assertEquals(new IntVal(1597), interpreted.run(() -> prog.evaluate(resolver.newGlobalEnvironment())));
+        HotFunctionCompiler.setThreshold(2);
+        try {
+            Environment globals = resolver.newGlobalEnvironment();
+            Fuel compiled = Fuel.unlimited();
+            assertEquals(new IntVal(1597), compiled.run(() -> prog.evaluate(globals)));
+            assertNotNull(((ClosureVal) globals.resolveVar("fib")).getCompiled());
+            assertEquals(interpreted.getUsed(), compiled.getUsed());
+        } finally {
+            HotFunctionCompiler.setThreshold(0);
+        }
+    }
+
+    @Test
+    public void testTailCalls() {
+        // var even = function(n) { if (n == 0) true else odd(n - 1) };
+        // var odd = function(n) { if (n == 0) false else even(n - 1) };
+        // var count = function(n) { if (n > 0) count(n - 1) else n };
+        Expression prog = new SeqExpr(new SeqExpr(
+                new VarDeclExpr("even", parity("odd", true)),
+                new VarDeclExpr("odd", parity("even", false))),
+                new VarDeclExpr("count", new FunctionDeclExpr(Arrays.asList("n"),
+                        new IfExpr(new BinOpExpr(Op.GT, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                                call("count", new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(new IntVal(1)))),
+                                new VarExpr("n")))));
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Environment env = resolver.newGlobalEnvironment();
+        prog.evaluate(env);
+        // Far deeper than the Java stack allows for nested applies.
+        assertEquals(new IntVal(0), call("count", new ValueExpr(new IntVal(1000000))).evaluate(env));
+        assertEquals(new BoolVal(true), call("even", new ValueExpr(new IntVal(100000))).evaluate(env));
+        assertEquals(new BoolVal(false), call("odd", new ValueExpr(new IntVal(100000))).evaluate(env));
+    }
+
+    @Test
+    public void testOptimizer() {
+        Optimizer optimizer = new Optimizer();
+        // 2 * 3 + x
+        Expression e = optimizer.optimize(new BinOpExpr(Op.ADD,
+                new BinOpExpr(Op.MULTIPLY, new ValueExpr(new IntVal(2)), new ValueExpr(new IntVal(3))),
+                new VarExpr("x")));
+        assertTrue(((BinOpExpr) e).getLeft() instanceof ValueExpr);
+        // if (true) 1 else 2
+        e = optimizer.optimize(new IfExpr(new ValueExpr(new BoolVal(true)),
+                new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(2))));
+        assertEquals(new IntVal(1), ((ValueExpr) e).getValue());
+        // 1 / 0 is left to fail at run time
+        e = optimizer.optimize(new BinOpExpr(Op.DIVIDE, new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(0))));
+        assertTrue(e instanceof BinOpExpr);
+        // function(x) { var unused = 3; var y = x; y } keeps only y
+        e = optimizer.optimize(new FunctionDeclExpr(Arrays.asList("x"),
+                new SeqExpr(new SeqExpr(
+                        new VarDeclExpr("unused", new ValueExpr(new IntVal(3))),
+                        new VarDeclExpr("y", new VarExpr("x"))),
+                        new VarExpr("y"))));
+        Expression body = ((FunctionDeclExpr) e).getBody();
+        assertTrue(((SeqExpr) body).getFirst() instanceof VarDeclExpr);
+        assertEquals("y", ((VarDeclExpr) ((SeqExpr) body).getFirst()).getVarName());
+        // function() { var x = 1; x = 2; 3 } never reads x, so keeps only 3
+        e = optimizer.optimize(new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new SeqExpr(
+                        new VarDeclExpr("x", new ValueExpr(new IntVal(1))),
+                        new AssignExpr("x", new ValueExpr(new IntVal(2)))),
+                        new ValueExpr(new IntVal(3)))));
+        assertEquals(new IntVal(3), ((ValueExpr) ((FunctionDeclExpr) e).getBody()).getValue());
+        // function() { x = 2; var x = 1; 3 } may assign an outer x first
+        e = optimizer.optimize(new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new SeqExpr(
+                        new AssignExpr("x", new ValueExpr(new IntVal(2))),
+                        new VarDeclExpr("x", new ValueExpr(new IntVal(1)))),
+                        new ValueExpr(new IntVal(3)))));
+        assertTrue(((FunctionDeclExpr) e).getBody() instanceof SeqExpr);
+    }
+
+    @Test
+    public void testScriptCache() throws Exception {
+        Path dir = Files.createTempDirectory("fwjs-cache");
+        try {
+            ScriptCache cache = new ScriptCache(dir);
+            byte[] source = "var f = function(n) { if (n > 0) n * 2; else null; }; f(21);".getBytes();
+            List<Expression> args = new ArrayList<Expression>();
+            args.add(new ValueExpr(new IntVal(21)));
+            Expression prog = new SeqExpr(
+                    new VarDeclExpr("f", new FunctionDeclExpr(Arrays.asList("n"),
+                            new IfExpr(new BinOpExpr(Op.GT, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                                    new BinOpExpr(Op.MULTIPLY, new VarExpr("n"), new ValueExpr(new IntVal(2))),
+                                    new ValueExpr(new NullVal())))),
+                    new FunctionAppExpr(new VarExpr("f"), args));
+            assertNull(cache.load(source, false));
+            cache.store(source, false, prog);
+            assertNull(cache.load(source, true));
+            Expression loaded = cache.load(source, false);
+            assertEquals(new IntVal(42), loaded.evaluate(new Environment()));
+
+            // A damaged entry is ignored.
+            Path entry = Files.list(dir).findFirst().get();
+            byte[] bytes = Files.readAllBytes(entry);
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(entry, bytes);
+            assertNull(cache.load(source, false));
+        } finally {
+            for (Path p : Files.list(dir).toArray(Path[]::new))
+                Files.delete(p);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testScriptParser() {
+        ScriptParser parser = new ScriptParser();
+        parser.setTwoStage(true);
+        String source = "var f = function(n) { if (n < 2) n; else n * 3; }; var x = (f(4)) + 2 * 3; x;";
+        Expression prog = parser.parse(source);
+        assertEquals(new IntVal(18), prog.evaluate(new Environment()));
+        // The same instance parses the next input.
+        assertEquals(new IntVal(7), parser.parse("var y = 3; y + 4;").evaluate(new Environment()));
+        parser.setTwoStage(false);
+        assertEquals(new IntVal(18), parser.parse(source).evaluate(new Environment()));
+    }
+
+    @Test
+    public void testStatementStream() {
+        StatementStream stats = new StatementStream(new StringReader(
+                "var x = 1;; var f = function(n) { n + x; };\nif (x > 0) x = f(2); else x = 0;"));
+        Resolver resolver = new Resolver();
+        Environment globals = resolver.newGlobalEnvironment();
+        int count = 0;
+        for (Expression stat = stats.next(); stat != null; stat = stats.next()) {
+            resolver.resolve(stat);
+            stat.evaluate(globals);
+            count++;
+        }
+        assertEquals(3, count);
+        assertEquals(new IntVal(3), globals.resolveVar("x"));
+
+        // A statement with a syntax error is rejected, not run with holes in it.
+        stats = new StatementStream(new StringReader("var a = 1;\nvar b = {;\nvar c = 2;"));
+        assertNotNull(stats.next());
+        try {
+            stats.next();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("line 2"));
+        }
+    }
+
+    @Test
+    public void testMappedCharStream() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            text.append("print(").append(i).append("); // caf\u00e9 \u20ac \ud83d\ude00\n");
+        String source = text.toString();
+        CharStream expected = CharStreams.fromString(source);
+        MappedCharStream in = new MappedCharStream(
+                ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), "test");
+        assertEquals(expected.size(), in.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.LA(1), in.LA(1));
+            assertEquals(expected.LA(2), in.LA(2));
+            assertEquals(expected.LA(-1), in.LA(-1));
+            expected.consume();
+            in.consume();
+        }
+        assertEquals(IntStream.EOF, in.LA(1));
+        in.seek(100);
+        expected.seek(100);
+        assertEquals(expected.LA(1), in.LA(1));
+        Interval span = Interval.of(90, 500);
+        assertEquals(expected.getText(span), in.getText(span));
+        assertEquals(new IntVal(7), new ScriptParser().parse(new MappedCharStream(
+                ByteBuffer.wrap("var x = 7; x;".getBytes()), "ascii")).evaluate(new Environment()));
+    }
+
+    @Test
+    public void testScriptEngine() throws Exception {
+        ScriptEngine engine = new ScriptEngine(2, false);
+        String source = "var n = 0; var f = function(x) { x * 2; };"
+                + " while (n < 1000) { n = n + 1; } (f(n)) + 1;";
+        Program program = engine.compile(source);
+        assertSame(program, engine.compile(source));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Value>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++)
+                results.add(pool.submit(() -> program.run()));
+            for (Future<Value> result : results)
+                assertEquals(new IntVal(2001), result.get());
+        } finally {
+            pool.shutdown();
+        }
+
+        engine.compile("1;");
+        engine.compile("2;");
+        assertEquals(2, engine.getCachedCount());
+        assertNotSame(program, engine.compile(source));
+    }
+
+    @Test
+    public void testScriptExecutor() throws Exception {
+        List<String> sources = new ArrayList<String>();
+        for (int i = 0; i < 50; i++)
+            sources.add("var x = " + i + "; var i = 0; while (i < 3) { print(x); i = i + 1; } x;");
+        sources.add("print(1); 1 + true;");
+        List<ScriptExecutor.Result> results = new ArrayList<ScriptExecutor.Result>();
+        ScriptExecutor.Report report;
+        try (ScriptExecutor executor = new ScriptExecutor(new ScriptEngine())) {
+            report = executor.runBatch(sources, results);
+        }
+        assertEquals(51, report.getJobs());
+        assertEquals(1, report.getFailures());
+        String nl = System.lineSeparator();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(new IntVal(i), results.get(i).getValue());
+            assertEquals(i + nl + i + nl + i + nl, results.get(i).getOutput());
+            assertNull(results.get(i).getError());
+        }
+        ScriptExecutor.Result failed = results.get(50);
+        assertNull(failed.getValue());
+        assertEquals("1" + nl, failed.getOutput());
+        assertTrue(failed.getError() instanceof RuntimeException);
+        assertTrue(report.getPercentile(50) <= report.getPercentile(100));
+    }
+
+    @Test
+    public void testPrelude() throws Exception {
+        ScriptEngine engine = new ScriptEngine();
+        Environment prelude = engine.loadPrelude(
+                "var pair = function(x,y) { function(f) { f(x,y); }; };"
+                + " var head = function(p) { p(function(x,y) { x; }); };"
+                + " var tail = function(p) { p(function(x,y) { y; }); };"
+                + " var sum = function(lst) { if (lst == null) 0; else (head(lst)) + (sum(tail(lst))); };"
+                + " var limit = 10; var count = 0;"
+                + " var bump = function() { count = count + 1; };");
+        assertTrue(prelude.isFrozen());
+
+        // Every run sees the prelude, and its own writes stay in its overlay.
+        Program program = engine.compile("limit = limit + 1;"
+                + " var lst = null; var i = 0; while (i < limit) { i = i + 1; lst = pair(i, lst); } sum(lst);");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Value>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++)
+                results.add(pool.submit(() -> program.run(program.newGlobalEnvironment(prelude))));
+            for (Future<Value> result : results)
+                assertEquals(new IntVal(66), result.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(new IntVal(10), prelude.resolveVar("limit"));
+
+        Program redeclare = engine.compile("var limit = 3;");
+        try {
+            redeclare.run(redeclare.newGlobalEnvironment(prelude));
+            fail();
+        } catch (RuntimeException e) {}
+
+        // Prelude functions assign the globals of the run that calls them.
+        Program bump = engine.compile("bump(); bump(); count;");
+        assertEquals(new IntVal(2), bump.run(bump.newGlobalEnvironment(prelude)));
+        assertEquals(new IntVal(2), bump.run(bump.newGlobalEnvironment(prelude)));
+        assertEquals(new IntVal(0), prelude.resolveVar("count"));
+
+        // Variables that prelude closures captured are not shared between runs either.
+        Environment counter = engine.loadPrelude(
+                "var counter = function() { var n = 0; function() { n = n + 1; n; }; }; var c = counter();");
+        Program count = engine.compile("c(); c(); print(c());");
+        String nl = System.lineSeparator();
+        for (int i = 0; i < 2; i++) {
+            java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+            Environment env = count.newGlobalEnvironment(counter);
+            OutputSink sink = new OutputSink(printed);
+            env.setOutput(sink);
+            count.run(env);
+            sink.flush();
+            assertEquals("3" + nl, printed.toString("UTF-8"));
+        }
+
+        // Prelude functions print to the output of the run that calls them.
+        Environment shows = engine.loadPrelude("var show = function(x) { print(x); };");
+        Program main = engine.compile("print(1); show(2); print(3);");
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        Environment globals = main.newGlobalEnvironment(shows);
+        OutputSink out = new OutputSink(bytes);
+        globals.setOutput(out);
+        main.run(globals);
+        out.flush();
+        assertEquals("1" + nl + "2" + nl + "3" + nl, bytes.toString("UTF-8"));
+        try (ScriptExecutor executor = new ScriptExecutor(engine, shows)) {
+            List<ScriptExecutor.Result> results = executor.runAll(Arrays.asList("show(4);", "print(5); show(6);"));
+            assertEquals("4" + nl, results.get(0).getOutput());
+            assertEquals("5" + nl + "6" + nl, results.get(1).getOutput());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String source = "var pair = function(x,y) { function(f) { f(x,y); }; };"
+                + " var head = function(p) { p(function(x,y) { x; }); };"
+                + " var tail = function(p) { p(function(x,y) { y; }); };"
+                + " var sum = function(lst) { if (lst == null) 0; else (head(lst)) + (sum(tail(lst))); };"
+                + " var nums = pair(1, pair(2, pair(3, null))); var flag = true; late = 7;"
+                + " var counter = function() { var n = 0; var inc = function() { n = n + 1; };"
+                + " inc(); pair(inc, function() { n; }); }; var cnt = counter();";
+        Expression prog = new ScriptParser().parse(source);
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Environment globals = resolver.newGlobalEnvironment();
+        prog.evaluate(globals);
+        globals.freeze();
+
+        Path dir = Files.createTempDirectory("fwjs-snapshot");
+        try {
+            Snapshot snapshot = new Snapshot(dir.resolve("prelude.snap"));
+            ByteBuffer bytes = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+            snapshot.store(bytes, false, prog, globals);
+            Environment restored = snapshot.load(bytes, false);
+            assertNotNull(restored);
+            assertTrue(restored.isFrozen());
+            assertEquals(new BoolVal(true), restored.resolveVar("flag"));
+            assertEquals(new IntVal(7), restored.resolveVar("late"));
+
+            Program program = new ScriptEngine().compile("(sum(pair(10, nums))) + (head(tail(nums)));");
+            assertEquals(new IntVal(18), program.run(program.newGlobalEnvironment(restored)));
+            // The two closures of cnt still share n, in a copy of their own for every run.
+            program = new ScriptEngine().compile("var inc = head(cnt); var get = tail(cnt); inc(); get();");
+            assertEquals(new IntVal(2), program.run(program.newGlobalEnvironment(restored)));
+            assertEquals(new IntVal(2), program.run(program.newGlobalEnvironment(restored)));
+
+            assertNull(snapshot.load(ByteBuffer.wrap("1;".getBytes(StandardCharsets.UTF_8)), false));
+            assertNull(snapshot.load(bytes, true));
+        } finally {
+            for (Path p : Files.list(dir).toArray(Path[]::new))
+                Files.delete(p);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testProfiler() throws Exception {
+        String source = "var fib = function(n) {\n"
+                + "  if (n < 2) n; else (fib(n - 1)) + (fib(n - 2));\n"
+                + "};\n"
+                + "var g = null;\n"
+                + "g = function() { fib(18); };\n"
+                + "var i = 0;\n"
+                + "while (i < 20) { g(); i = i + 1; }\n"
+                + "print(function() { 1; });\n";
+        Expression prog = new ScriptParser().parse(source);
+        List<String> labels = new ArrayList<String>();
+        prog.accept(new ExpressionBaseVisitor<Void>() {
+            @Override
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                labels.add(e.getLabel());
+                return super.visitFunctionDecl(e);
+            }
+        });
+        assertEquals(Arrays.asList("fib:1", "g:5", "(anonymous):8"), labels);
+
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        // Interpreted, then with fib compiled, so that it calls itself directly.
+        for (int threshold : new int[] { 0, 2 }) {
+            Profiler profiler = new Profiler(200);
+            HotFunctionCompiler.setThreshold(threshold);
+            profiler.start();
+            try {
+                prog.evaluate(resolver.newGlobalEnvironment());
+            } finally {
+                profiler.stop();
+                HotFunctionCompiler.setThreshold(0);
+            }
+            assertTrue(profiler.getSamples() > 0);
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            profiler.writeCollapsed(new java.io.PrintStream(bytes, true));
+            // g calls fib in tail position, so fib replaces g's frame, and
+            // fib(18) is never more than 18 calls deep.
+            for (String line : bytes.toString().split("\n")) {
+                assertTrue(line, line.matches("\\(program\\)(;g:5)?(;fib:1)* \\d+"));
+                assertTrue(line, line.split(";").length <= 19);
+            }
+            // Every call has returned, and calls are no longer recorded.
+            assertEquals(0, Profiler.track().frame().depth);
+            assertFalse(Profiler.enabled);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Metrics.register();
+        Metrics.register();
+        javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        javax.management.ObjectName name = new javax.management.ObjectName(Metrics.OBJECT_NAME);
+        assertEquals(Metrics.ENABLED, server.getAttribute(name, "Enabled"));
+
+        server.invoke(name, "reset", null, null);
+        Metrics.lookup(Metrics.nameLookups, 0);
+        Metrics.lookup(Metrics.slotLookups, 2);
+        Metrics.lookup(Metrics.slotLookups, 100);
+        long[] h = (long[]) server.getAttribute(name, "LookupDepthHistogram");
+        assertEquals(Metrics.DEPTH_BUCKETS, h.length);
+        assertEquals(1, h[0]);
+        assertEquals(1, h[2]);
+        assertEquals(1, h[Metrics.DEPTH_BUCKETS - 1]);
+        assertEquals(1L, server.getAttribute(name, "ResolveVarCalls"));
+        assertEquals(2L, server.getAttribute(name, "SlotLookups"));
+
+        // Counting only happens with -Dfwjs.metrics=true.
+        Metrics.reset();
+        Program program = new ScriptEngine().compile("var f = function(x) { x + 1; };\n"
+                + "var i = 0;\n"
+                + "while (i < 10) { i = f(i); }\n"
+                + "i;");
+        assertEquals(new IntVal(10), program.run(program.newGlobalEnvironment()));
+        Metrics.CountersMXBean c = Metrics.counters();
+        if (Metrics.ENABLED) {
+            assertEquals(10, c.getLoopIterations());
+            assertEquals(1, c.getClosuresCreated());
+            assertEquals(10, c.getClosureCalls());
+            // Every call gets a frame; as f declares no functions, it is reused.
+            assertTrue(c.getEnvironmentsCreated() + c.getFramesReused() >= 11);
+            assertTrue(c.getFramesReused() >= 9);
+            assertTrue(c.getIntValsAllocated() >= 10);
+        } else {
+            assertEquals(0, c.getLoopIterations() + c.getClosureCalls() + c.getEnvironmentsCreated()
+                    + c.getIntValsAllocated() + c.getSlotLookups());
+        }
+    }
+
+    @Test
+    public void testFramePool() {
+        Expression prog = new ScriptParser().parse("var add = function(x, y) { x + y; };\n"
+                + "var sum = function(n) { if (n == 0) { 0; } else { add(n, sum(n - 1)); } };\n"
+                + "var adder = function(x) { function(y) { add(x, y); }; };\n"
+                + "var add2 = adder(2);\n"
+                + "var a = sum(10);\n"
+                + "var b = add2(add2(1));\n"
+                + "var c = add(sum(3), add(1, 1));\n"
+                + "a + b + c;");
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        // Only the function inside adder captures anything: x, which is
+        // never assigned, so it is copied rather than kept in a Cell.
+        FunctionDeclExpr[] decls = functions(prog);
+        assertEquals(0, decls[2].getCaptures().size());
+        assertEquals(1, decls[3].getCaptures().size());
+        assertEquals("x", decls[3].getCaptures().nameAt(0));
+        assertFalse(decls[2].getScope().hasCells());
+
+        int mark = FramePool.current().mark();
+        assertEquals(new IntVal(55 + 5 + 8), prog.evaluate(resolver.newGlobalEnvironment()));
+        assertEquals(mark, FramePool.current().mark());
+
+        // A loop of tail calls keeps reusing the same frames.
+        Expression loop = new ScriptParser().parse(
+                "var count = function(n, acc) { if (n == 0) { acc; } else { count(n - 1, acc + 1); } };\n"
+                + "count(100000, 0);");
+        resolver.resolve(loop);
+        Environment globals = resolver.newGlobalEnvironment();
+        assertEquals(new IntVal(100000), loop.evaluate(globals));
+        assertEquals(mark, FramePool.current().mark());
+
+        // Past the pooled depth too, a function calling itself in tail
+        // position runs in the frame it is already in.
+        ClosureVal count = (ClosureVal) globals.resolveVar("count");
+        Environment frame = count.newFrame(new IntVal(5), new IntVal(0));
+        assertSame(frame, count.tailFrame(frame, new IntVal(4), new IntVal(1)));
+        assertEquals(new IntVal(4), frame.resolveVar("n"));
+        Environment other = resolver.newGlobalEnvironment();
+        loop.evaluate(other);
+        assertNotSame(frame, ((ClosureVal) other.resolveVar("count")).tailFrame(frame, new IntVal(4), new IntVal(1)));
+        Expression deep = new ScriptParser().parse(
+                "var deep = function(d) { if (d == 0) { count(100000, 0); } else { var r = deep(d - 1); r; } };\n"
+                + "deep(300);");
+        resolver.resolve(deep);
+        assertEquals(new IntVal(100000), deep.evaluate(globals));
+        assertEquals(mark, FramePool.current().mark());
 
+        // Calls that fail, in tail position or not, still give their frames back.
+        for (String source : new String[] { "var f = function(x) { x(1); };\nf(2);",
+                "var one = function(y) { y; };\nvar g = function(x) { one(x(1)); };\ng(2);" }) {
+            Expression bad = new ScriptParser().parse(source);
+            resolver.resolve(bad);
+            try {
+                bad.evaluate(resolver.newGlobalEnvironment());
+                fail();
+            } catch (ClassCastException e) {
+                assertEquals(mark, FramePool.current().mark());
+            }
+        }
+    }
+
+    private static FunctionDeclExpr[] functions(Expression prog) {
+        List<FunctionDeclExpr> decls = new ArrayList<FunctionDeclExpr>();
+        prog.accept(new ExpressionBaseVisitor<Void>() {
+            public Void visitFunctionDecl(FunctionDeclExpr e) {
+                decls.add(e);
+                return super.visitFunctionDecl(e);
+            }
+        });
+        return decls.toArray(new FunctionDeclExpr[0]);
+    }
+
+    @Test
+    public void testFlatClosures() {
+        String[][] cases = {
+            // A captured variable that changes is shared, not copied.
+            { "var counter = function() { var n = 0; function() { n = n + 1; }; };\n"
+                + "var c = counter(); c(); c(); c();", "3" },
+            { "var f = function() { var x = 1; var g = function() { x; }; x = 5; g(); };\nf();", "5" },
+            { "var f = function(n) { var g = function(k) { if (k == 0) { 0; } else { k + (g(k - 1)); } };"
+                + " g(n); };\nf(4);", "10" },
+            // Through a function that does not use x itself.
+            { "var f = function(x) { function(y) { function(z) { x + y + z; }; }; };\n"
+                + "var g = f(1); var h = g(2); h(3);", "6" },
+            { "var f = function(x) { var s = function() { x = x + 1; }; function() { s(); x; }; };\n"
+                + "var g = f(1); g(); g();", "3" },
+            // Until a var is declared, its name means the variable it shadows.
+            { "var x = 1; var outer = function() { var x = 10; var mid = function() {"
+                + " var inner = function() { x; }; var r = inner(); var x = 5; r; }; mid(); };\nouter();", "10" },
+            { "var x = 1; var outer = function() { var x = 10; var mid = function() {"
+                + " var inner = function() { x; }; var r = inner(); var x = 5; var s = inner(); r + s; };"
+                + " mid(); };\nouter();", "15" },
+            { "var x = 1; var outer = function() { var x = 10; var mid = function() {"
+                + " var inner = function() { x = x + 1; }; inner(); var y = x; var x = 5; y; };"
+                + " var m = mid(); m + x; };\nouter();", "22" },
+        };
+        for (String[] c : cases) {
+            Expression prog = new ScriptParser().parse(c[0]);
+            Resolver resolver = new Resolver();
+            resolver.resolve(prog);
+            Value expected = new IntVal(Integer.parseInt(c[1]));
+            assertEquals(c[0], expected, prog.evaluate(resolver.newGlobalEnvironment()));
+        }
+
+        // A closure keeps the variables it uses, not the frame it was made in.
+        Expression prog = new ScriptParser().parse(
+                "var f = function(x, y) { var z = 3; function() { y; }; };\nvar k = f(1, 2);");
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Environment globals = resolver.newGlobalEnvironment();
+        prog.evaluate(globals);
+        Environment env = ((ClosureVal) globals.resolveVar("k")).getEnv();
+        assertEquals(1, env.getScope().size());
+        assertEquals("y", env.getScope().nameAt(0));
+        assertSame(globals, env.getOuter());
+    }
+
+    @Test
+    public void testFuel() throws Exception {
+        ScriptEngine engine = new ScriptEngine();
+        Program loop = engine.compile("var i = 0; while (true) { i = i + 1; }");
+        Fuel fuel = new Fuel(1000);
+        try {
+            fuel.run(() -> loop.run());
+            fail();
+        } catch (ScriptStoppedException e) {
+            assertFalse(e.isCancelled());
+            assertEquals(0, e.getStackTrace().length);
+        }
+        assertEquals(1000, fuel.getUsed());
+
+        // Every call is a step.
+        Expression rec = new ScriptParser().parse(
+                "var down = function(n) { if (n > 0) 1 + (down(n - 1)); else 0; }; down(100);");
+        Resolver resolver = new Resolver();
+        resolver.resolve(rec);
+        assertEquals(new IntVal(100), new Fuel(101).run(() -> rec.evaluate(resolver.newGlobalEnvironment())));
+        try {
+            new Fuel(100).run(() -> rec.evaluate(resolver.newGlobalEnvironment()));
+            fail();
+        } catch (ScriptStoppedException e) {}
+        assertFalse(Fuel.enabled);
+
+        try (ScriptExecutor executor = new ScriptExecutor(engine)) {
+            Fuel forever = Fuel.unlimited();
+            Future<ScriptExecutor.Result> running = executor.submit("while (true) { 1; }", forever);
+            forever.cancel();
+            Throwable error = running.get().getError();
+            assertTrue(error instanceof ScriptStoppedException);
+            assertTrue(((ScriptStoppedException) error).isCancelled());
+
+            executor.setBudget(50);
+            error = executor.submit("var i = 0; while (i < 100) { i = i + 1; }").get().getError();
+            assertTrue(error instanceof ScriptStoppedException);
+            assertNull(executor.submit("var i = 0; while (i < 10) { i = i + 1; }").get().getError());
+        }
+    }
+
+    @Test
+    public void testOutputSink() throws Exception {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        // Small enough that long lines go around the buffer.
+        OutputSink sink = new OutputSink(bytes, 16);
+        Value closure = new ClosureVal(Arrays.asList("a", "b"), new ValueExpr(new NullVal()), null);
+        Value[] values = {new IntVal(0), new IntVal(-42), new IntVal(Integer.MAX_VALUE),
+                new IntVal(Integer.MIN_VALUE), new BoolVal(true), BoolVal.FALSE, new NullVal(), closure};
+        String nl = System.lineSeparator();
+        StringBuilder expected = new StringBuilder();
+        for (Value v : values) {
+            sink.print(v);
+            expected.append(v).append(nl);
+        }
+        assertTrue(bytes.size() < expected.length());
+        sink.flush();
+        assertEquals(expected.toString(), bytes.toString("UTF-8"));
+
+        bytes.reset();
+        sink.setFlushSize(1);
+        sink.print(new IntVal(7));
+        assertEquals("7" + nl, bytes.toString("UTF-8"));
+
+        // With a flush delay, a line is written out in time even if nothing is printed after it.
+        bytes.reset();
+        OutputSink delayed = new OutputSink(bytes);
+        delayed.setFlushDelay(10);
+        delayed.print(new IntVal(8));
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (bytes.size() == 0 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertEquals("8" + nl, bytes.toString("UTF-8"));
+
+        Path file = Files.createTempFile("fwjs-out", ".txt");
+        try {
+            Program program = new ScriptEngine().compile(
+                    "var i = 0; while (i < 1000) { print(i); i = i + 1; } print(i == 1000);");
+            Environment globals = program.newGlobalEnvironment();
+            try (OutputSink out = OutputSink.open(file)) {
+                globals.setOutput(out);
+                program.run(globals);
+            }
+            List<String> lines = Files.readAllLines(file);
+            assertEquals(1001, lines.size());
+            assertEquals("999", lines.get(999));
+            assertEquals("true", lines.get(1000));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testInlineCache() {
+        // apply(f, x) calls whatever f it is given at one call site.
+        Expression prog = new ScriptParser().parse("var apply = function(f, x) { var r = f(x); r; };\n"
+                + "var inc = function(x) { x + 1; };\n"
+                + "var dbl = function(x) { x * 2; };\n"
+                + "var sum = 0;\n"
+                + "var i = 0;\n"
+                + "while (i < 10) { sum = sum + (apply(inc, i)); i = i + 1; }\n"
+                + "sum;");
+        List<FunctionAppExpr> sites = new ArrayList<FunctionAppExpr>();
+        prog.accept(new ExpressionBaseVisitor<Void>() {
+            @Override
+            public Void visitFunctionApp(FunctionAppExpr e) {
+                if (e.getFunction() instanceof VarExpr && ((VarExpr) e.getFunction()).getVarName().equals("f"))
+                    sites.add(e);
+                return super.visitFunctionApp(e);
+            }
+        });
+        FunctionAppExpr site = sites.get(0);
+        assertEquals("uninitialized", site.getCacheState());
+        Resolver resolver = new Resolver();
+        resolver.resolve(prog);
+        Environment globals = resolver.newGlobalEnvironment();
+        assertEquals(new IntVal(55), prog.evaluate(globals));
+        assertEquals("monomorphic", site.getCacheState());
+
+        ClosureVal apply = (ClosureVal) globals.resolveVar("apply");
+        Value dbl = globals.resolveVar("dbl");
+        assertEquals(new IntVal(8), apply.call(dbl, new IntVal(4)));
+        assertEquals("polymorphic(2)", site.getCacheState());
+        // Both functions still go to the right body.
+        assertEquals(new IntVal(5), apply.call(globals.resolveVar("inc"), new IntVal(4)));
+
+        for (int i = 0; i < CallNode.MAX_POLYMORPHIC; i++) {
+            FunctionDeclExpr f = new FunctionDeclExpr(Arrays.asList("x"),
+                    new BinOpExpr(Op.ADD, new VarExpr("x"), new ValueExpr(new IntVal(i))));
+            resolver.resolve(f);
+            assertEquals(new IntVal(10 + i), apply.call(f.evaluate(globals), new IntVal(10)));
+        }
+        assertEquals("megamorphic", site.getCacheState());
+        assertEquals(new IntVal(8), apply.call(dbl, new IntVal(4)));
+        if (Metrics.ENABLED) {
+            // The first call of inc, dbl and every f missed, as did all megamorphic calls.
+            assertEquals(10, site.getHits());
+            assertEquals(7, site.getMisses());
+        }
+    }
+
+    private static FunctionDeclExpr parity(String other, boolean atZero) {
+        return new FunctionDeclExpr(Arrays.asList("n"),
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                        new ValueExpr(new BoolVal(atZero)),
+                        call(other, new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(new IntVal(1))))));
+    }
+
+    private static FunctionAppExpr call(String f, Expression arg) {
+        List<Expression> args = new ArrayList<Expression>();
+        args.add(arg);
+        return new FunctionAppExpr(new VarExpr(f), args);
+    }
+}